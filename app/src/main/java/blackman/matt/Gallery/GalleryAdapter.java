@@ -40,15 +40,16 @@ import com.nostra13.universalimageloader.core.ImageLoader;
 import com.nostra13.universalimageloader.core.assist.FailReason;
 import com.nostra13.universalimageloader.core.assist.ImageSize;
 import com.nostra13.universalimageloader.core.imageaware.ImageAware;
-import com.nostra13.universalimageloader.core.imageaware.ImageViewAware;
 import com.nostra13.universalimageloader.core.listener.SimpleImageLoadingListener;
 import com.nostra13.universalimageloader.utils.MemoryCacheUtils;
 
 import java.util.ArrayList;
 import java.util.List;
 
+import blackman.matt.Utils.FullImageAware;
 import blackman.matt.Utils.ImageLongPressDialog;
 import blackman.matt.board.ImageFile;
+import blackman.matt.board.ImageKey;
 import blackman.matt.board.Post;
 import blackman.matt.infinitebrowser.R;
 
@@ -142,7 +143,15 @@ public class GalleryAdapter extends BaseAdapter {
             }
         });
 
-        ImageLoader.getInstance().loadImage(image.getThumbnailUrl(), mImageSize,
+        // The cell already shows or is loading this thumbnail
+        final ImageKey imageKey = image.getThumbnailKey();
+        if(imageKey.equals(holder.imageKey)) {
+            return convertView;
+        }
+        holder.imageKey = imageKey;
+        holder.image.setImageBitmap(null);
+
+        ImageLoader.getInstance().loadImage(imageKey.url, mImageSize,
                 new SimpleImageLoadingListener() {
                     @Override
                     public void onLoadingStarted(String imageUri, View view) {
@@ -152,6 +161,11 @@ public class GalleryAdapter extends BaseAdapter {
                     @Override
                     public void onLoadingFailed(String imageUri, View view,
                                                 FailReason failReason) {
+                        // The cell was reused for another image while this one loaded
+                        if(holder.imageKey != imageKey) {
+                            return;
+                        }
+                        holder.imageKey = null;
                         holder.progress.setVisibility(View.GONE);
                         Drawable error = mContext.getResources().getDrawable(R.drawable.deadico);
                         holder.image.setVisibility(View.VISIBLE);
@@ -161,6 +175,9 @@ public class GalleryAdapter extends BaseAdapter {
                     @Override
                     public void onLoadingComplete(String imageUri, View view,
                                                   Bitmap loadedImage) {
+                        if(holder.imageKey != imageKey) {
+                            return;
+                        }
                         holder.progress.setVisibility(View.GONE);
                         holder.image.setImageBitmap(loadedImage);
                         holder.image.setVisibility(View.VISIBLE);
@@ -178,10 +195,11 @@ public class GalleryAdapter extends BaseAdapter {
             mCurrentAnimator.cancel();
         }
 
-        ImageAware imageAware = new ImageViewAware(mExpandedImage, false);
+        // Decoded no bigger than the screen, however large the image is
+        ImageAware imageAware = new FullImageAware(mExpandedImage, image);
 
         ImageLoader.getInstance().displayImage(image.getFullUrl(), imageAware,
-                new SimpleImageLoadingListener() {
+                FullImageAware.OPTIONS, new SimpleImageLoadingListener() {
                     @Override
                     public void onLoadingStarted(String imageUri, View view) {
                         thumbView.setVisibility(View.INVISIBLE);
@@ -355,5 +373,6 @@ public class GalleryAdapter extends BaseAdapter {
     private static class ViewHolder {
         public GalleryImageItem image;
         public ProgressBar progress;
+        public ImageKey imageKey;
     }
 }
@@ -0,0 +1,104 @@
+/*
+ * Infinity Browser 2014  Matt Blackman
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package blackman.matt.Utils;
+
+import android.graphics.Bitmap;
+import android.util.DisplayMetrics;
+import android.widget.ImageView;
+
+import com.nostra13.universalimageloader.core.DisplayImageOptions;
+import com.nostra13.universalimageloader.core.assist.ImageScaleType;
+import com.nostra13.universalimageloader.core.assist.ViewScaleType;
+import com.nostra13.universalimageloader.core.imageaware.ImageViewAware;
+
+import blackman.matt.board.ImageFile;
+
+/**
+ * Shows a full sized image in an image view, decoded no bigger than it can be shown on the
+ * screen. The size it is shown at is worked out from the size of the display and the size the
+ * site gives for the image, so it is known before the image has been downloaded, and the image
+ * loader decodes it at the whole number sample size that fits it to that. A huge image then
+ * takes about as much memory as the screen instead of its full resolution.
+ *
+ * Load with {@link #OPTIONS} so the sample size is not rounded to a power of two.
+ */
+public class FullImageAware extends ImageViewAware {
+    public static final DisplayImageOptions OPTIONS = new DisplayImageOptions.Builder()
+            .cacheInMemory(true)
+            .cacheOnDisk(true)
+            .bitmapConfig(Bitmap.Config.RGB_565)
+            .imageScaleType(ImageScaleType.IN_SAMPLE_INT)
+            .build();
+
+    private final int mWidth, mHeight;
+
+    /**
+     * Wraps an image view to show a full image in.
+     *
+     * @param imageView View the image is shown in.
+     * @param image The image being shown.
+     */
+    public FullImageAware(ImageView imageView, ImageFile image) {
+        super(imageView, false);
+        DisplayMetrics metrics = imageView.getResources().getDisplayMetrics();
+        int maxWidth = metrics.widthPixels;
+        int maxHeight = metrics.heightPixels;
+
+        if (image.getWidth() > 0 && image.getHeight() > 0) {
+            // Fitted inside the screen keeping its shape, never scaled up
+            float scale = Math.min(1f, Math.min((float) maxWidth / image.getWidth(),
+                    (float) maxHeight / image.getHeight()));
+            mWidth = Math.max(1, Math.round(image.getWidth() * scale));
+            mHeight = Math.max(1, Math.round(image.getHeight() * scale));
+        } else {
+            mWidth = maxWidth;
+            mHeight = maxHeight;
+        }
+    }
+
+    /**
+     * Gets the width the image is decoded for.
+     *
+     * @return Width in pixels.
+     */
+    @Override
+    public int getWidth() {
+        return mWidth;
+    }
+
+    /**
+     * Gets the height the image is decoded for.
+     *
+     * @return Height in pixels.
+     */
+    @Override
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * The whole image is fit inside the target size, whatever the view crops it to.
+     *
+     * @return Fit inside.
+     */
+    @Override
+    public ViewScaleType getScaleType() {
+        return ViewScaleType.FIT_INSIDE;
+    }
+}
@@ -0,0 +1,514 @@
+/*
+ * Infinity Browser 2014  Matt Blackman
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package blackman.matt.Utils;
+
+import android.util.Log;
+import android.util.LruCache;
+
+import org.apache.http.Header;
+import org.apache.http.HttpConnection;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Shared way for the loaders to get pages from 8chan. Remembers the ETag and Last-Modified
+ * headers of every page that was parsed along with the parsed result, and asks the server if
+ * the page changed the next time it is loaded. A 304 lets the caller reuse what it parsed last
+ * time instead of downloading and parsing the page again.
+ *
+ * Every request goes through one application wide client that keeps connections to the site
+ * alive between loads and asks for gzipped responses.
+ */
+public class HttpLoader {
+    private static final String HEADER_ETAG = "ETag";
+    private static final String HEADER_LAST_MODIFIED = "Last-Modified";
+    private static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+    private static final String HEADER_IF_MODIFIED_SINCE = "If-Modified-Since";
+    private static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+    private static final String ENCODING_GZIP = "gzip";
+
+    private static final String TAG = "HttpLoader";
+
+    // Connections kept open to the site at once
+    private static final int MAX_CONNECTIONS = 6;
+
+    // Seconds before an unused connection in the pool is closed
+    private static final int IDLE_CONNECTION_TIMEOUT = 30;
+
+    private static int sConnectTimeout = 15 * 1000;
+    private static int sSocketTimeout = 30 * 1000;
+
+    private static DefaultHttpClient sClient;
+
+    private static final AtomicLong sRequests = new AtomicLong();
+    private static final AtomicLong sReusedConnections = new AtomicLong();
+    private static final AtomicLong sCompressedBytes = new AtomicLong();
+    private static final AtomicLong sUncompressedBytes = new AtomicLong();
+
+    // Number of pages to remember the validators and parsed results of
+    private static final int MAX_CACHED_PAGES = 8;
+
+    private static final LruCache<String, CachedPage> sCachedPages =
+            new LruCache<String, CachedPage>(MAX_CACHED_PAGES);
+
+    /**
+     * Validators and parsed result of a page that was loaded before.
+     */
+    private static class CachedPage {
+        final String eTag, lastModified;
+        final Object result;
+
+        CachedPage(String eTag, String lastModified, Object result) {
+            this.eTag = eTag;
+            this.lastModified = lastModified;
+            this.result = result;
+        }
+    }
+
+    /**
+     * Nothing to create, everything is static.
+     */
+    private HttpLoader() {
+    }
+
+    /**
+     * Gets a page, sending the validators from the last time it was parsed if there are any.
+     *
+     * @param url Url of the page.
+     * @return The response, which must be closed by the caller.
+     * @throws IOException If the request failed or the server sent back an error.
+     */
+    public static Response get(String url) throws IOException {
+        CachedPage cached = sCachedPages.get(url);
+        if (cached != null) {
+            return execute(url, cached.eTag, cached.lastModified, cached);
+        }
+        return execute(url, null, null, null);
+    }
+
+    /**
+     * Gets a page using validators kept by the caller instead of the shared cache. Used by
+     * callers that keep their own copy of the page, like on disk.
+     *
+     * @param url Url of the page.
+     * @param eTag ETag the caller's copy was sent with, or null.
+     * @param lastModified Last-Modified the caller's copy was sent with, or null.
+     * @return The response, which must be closed by the caller.
+     * @throws IOException If the request failed or the server sent back an error.
+     */
+    public static Response get(String url, String eTag, String lastModified) throws IOException {
+        return execute(url, eTag, lastModified, null);
+    }
+
+    /**
+     * Sends the request for a page.
+     *
+     * @param url Url of the page.
+     * @param eTag ETag to send back to the server, or null.
+     * @param lastModified Last-Modified to send back to the server, or null.
+     * @param cached Cached page to fall back on if the server says it has not changed.
+     * @return The response, which must be closed by the caller.
+     * @throws IOException If the request failed or the server sent back an error.
+     */
+    private static Response execute(String url, String eTag, String lastModified,
+                                    CachedPage cached) throws IOException {
+        HttpGet request = new HttpGet(url);
+
+        if (eTag != null) {
+            request.addHeader(HEADER_IF_NONE_MATCH, eTag);
+        }
+        if (lastModified != null) {
+            request.addHeader(HEADER_IF_MODIFIED_SINCE, lastModified);
+        }
+
+        DefaultHttpClient client = getClient();
+        client.getConnectionManager().closeIdleConnections(IDLE_CONNECTION_TIMEOUT,
+                TimeUnit.SECONDS);
+        HttpResponse response = client.execute(request);
+        int status = response.getStatusLine().getStatusCode();
+
+        if (status >= HttpStatus.SC_BAD_REQUEST || (status == HttpStatus.SC_NOT_MODIFIED
+                && eTag == null && lastModified == null)) {
+            HttpEntity entity = response.getEntity();
+            if (entity != null) {
+                entity.consumeContent();
+            }
+            throw new HttpStatusException(url, status);
+        }
+
+        return new Response(url, response, status == HttpStatus.SC_NOT_MODIFIED, cached);
+    }
+
+    /**
+     * Thrown when the server answers with an error status, so callers can tell a page that is
+     * gone from a failed connection.
+     */
+    public static class HttpStatusException extends IOException {
+        private final int mStatus;
+
+        /**
+         * Creates the exception for a failed request.
+         *
+         * @param url Url of the page.
+         * @param status The status the server sent back.
+         */
+        public HttpStatusException(String url, int status) {
+            super("Loading " + url + " failed with status " + status);
+            mStatus = status;
+        }
+
+        /**
+         * Gets the status the server sent back.
+         *
+         * @return The HTTP status code.
+         */
+        public int getStatus() {
+            return mStatus;
+        }
+    }
+
+    /**
+     * Sets the timeouts used by every request from now on.
+     *
+     * @param connectTimeout Milliseconds to wait for a connection to the site.
+     * @param socketTimeout Milliseconds to wait for data once connected.
+     */
+    public static synchronized void setTimeouts(int connectTimeout, int socketTimeout) {
+        sConnectTimeout = connectTimeout;
+        sSocketTimeout = socketTimeout;
+        if (sClient != null) {
+            HttpParams params = sClient.getParams();
+            HttpConnectionParams.setConnectionTimeout(params, sConnectTimeout);
+            HttpConnectionParams.setSoTimeout(params, sSocketTimeout);
+            ConnManagerParams.setTimeout(params, sConnectTimeout);
+        }
+    }
+
+    /**
+     * Gets how many requests were sent over a connection that was already open.
+     *
+     * @return Fraction of requests that reused a connection, from 0 to 1.
+     */
+    public static float getConnectionReuseRate() {
+        long requests = sRequests.get();
+        return requests > 0 ? (float) sReusedConnections.get() / requests : 0f;
+    }
+
+    /**
+     * Gets how many bytes were not downloaded thanks to gzipped responses.
+     *
+     * @return Bytes saved by compression so far.
+     */
+    public static long getBytesSavedByCompression() {
+        return sUncompressedBytes.get() - sCompressedBytes.get();
+    }
+
+    /**
+     * Creates the shared client the first time it is needed.
+     *
+     * @return The shared client.
+     */
+    private static synchronized DefaultHttpClient getClient() {
+        if (sClient == null) {
+            HttpParams params = new BasicHttpParams();
+            HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+            HttpProtocolParams.setContentCharset(params, HTTP.UTF_8);
+            HttpConnectionParams.setConnectionTimeout(params, sConnectTimeout);
+            HttpConnectionParams.setSoTimeout(params, sSocketTimeout);
+            HttpConnectionParams.setStaleCheckingEnabled(params, true);
+            ConnManagerParams.setTimeout(params, sConnectTimeout);
+            ConnManagerParams.setMaxTotalConnections(params, MAX_CONNECTIONS);
+            ConnManagerParams.setMaxConnectionsPerRoute(params,
+                    new ConnPerRouteBean(MAX_CONNECTIONS));
+
+            SchemeRegistry registry = new SchemeRegistry();
+            registry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+            registry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+
+            ClientConnectionManager manager = new ThreadSafeClientConnManager(params, registry);
+            sClient = new DefaultHttpClient(manager, params);
+
+            sClient.addRequestInterceptor(new HttpRequestInterceptor() {
+                @Override
+                public void process(HttpRequest request, HttpContext context) {
+                    if (!request.containsHeader(HEADER_ACCEPT_ENCODING)) {
+                        request.addHeader(HEADER_ACCEPT_ENCODING, ENCODING_GZIP);
+                    }
+                }
+            });
+
+            sClient.addResponseInterceptor(new HttpResponseInterceptor() {
+                @Override
+                public void process(HttpResponse response, HttpContext context) {
+                    HttpConnection connection = (HttpConnection)
+                            context.getAttribute(ExecutionContext.HTTP_CONNECTION);
+                    sRequests.incrementAndGet();
+                    if (connection != null && connection.getMetrics().getRequestCount() > 1) {
+                        sReusedConnections.incrementAndGet();
+                    }
+
+                    HttpEntity entity = response.getEntity();
+                    Header encoding = entity != null ? entity.getContentEncoding() : null;
+                    if (encoding != null && encoding.getValue().equalsIgnoreCase(ENCODING_GZIP)) {
+                        response.setEntity(new GzipEntity(entity));
+                    }
+                }
+            });
+        }
+        return sClient;
+    }
+
+    /**
+     * Forgets the validators and parsed result of a page so the next load is a full download.
+     *
+     * @param url Url of the page.
+     */
+    public static void invalidate(String url) {
+        sCachedPages.remove(url);
+    }
+
+    /**
+     * A response from the server for a page.
+     */
+    public static class Response {
+        private final String mUrl;
+        private final HttpResponse mResponse;
+        private final boolean mNotModified;
+        private final CachedPage mCached;
+
+        /**
+         * Wraps a response from the server.
+         *
+         * @param url Url of the page.
+         * @param response The response from the server.
+         * @param notModified If the server said the page has not changed.
+         * @param cached The cached page the request was sent for, if any.
+         */
+        private Response(String url, HttpResponse response, boolean notModified,
+                         CachedPage cached) {
+            mUrl = url;
+            mResponse = response;
+            mNotModified = notModified;
+            mCached = cached;
+        }
+
+        /**
+         * Checks if the page has not changed since the last time it was parsed.
+         *
+         * @return If the cached result should be used.
+         */
+        public boolean isNotModified() {
+            return mNotModified;
+        }
+
+        /**
+         * Gets the result parsed the last time the page was loaded.
+         *
+         * @param <T> Type of the result the caller stored.
+         * @return The cached result, or null if the page changed.
+         */
+        @SuppressWarnings("unchecked")
+        public <T> T getCachedResult() {
+            return mNotModified && mCached != null ? (T) mCached.result : null;
+        }
+
+        /**
+         * Gets the ETag the server sent with the page.
+         *
+         * @return The ETag or null if there was none.
+         */
+        public String getETag() {
+            Header eTag = mResponse.getFirstHeader(HEADER_ETAG);
+            return eTag != null ? eTag.getValue() : null;
+        }
+
+        /**
+         * Gets the Last-Modified time the server sent with the page.
+         *
+         * @return The Last-Modified time or null if there was none.
+         */
+        public String getLastModified() {
+            Header lastModified = mResponse.getFirstHeader(HEADER_LAST_MODIFIED);
+            return lastModified != null ? lastModified.getValue() : null;
+        }
+
+        /**
+         * Gets the body of the page.
+         *
+         * @return A stream of the body of the page.
+         * @throws IOException If the body could not be read.
+         */
+        public InputStream getContent() throws IOException {
+            return mResponse.getEntity().getContent();
+        }
+
+        /**
+         * Remembers the result parsed from this response along with the response's validators
+         * so the next load of the page can be conditional.
+         *
+         * @param result What was parsed from the page.
+         */
+        public void cacheResult(Object result) {
+            String eTag = getETag();
+            String lastModified = getLastModified();
+
+            if (eTag != null || lastModified != null) {
+                sCachedPages.put(mUrl, new CachedPage(eTag, lastModified, result));
+            } else {
+                sCachedPages.remove(mUrl);
+            }
+        }
+
+        /**
+         * Releases the response. Must be called when done with it.
+         */
+        public void close() {
+            HttpEntity entity = mResponse.getEntity();
+            if (entity != null) {
+                try {
+                    entity.consumeContent();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            Log.v(TAG, "Connection reuse " + Math.round(getConnectionReuseRate() * 100)
+                    + "%, " + getBytesSavedByCompression() / 1024 + "KB saved by gzip");
+        }
+    }
+
+    /**
+     * Unzips a gzipped response while counting the bytes on both sides of the compression.
+     */
+    private static class GzipEntity extends HttpEntityWrapper {
+        /**
+         * Wraps the gzipped entity from the server.
+         *
+         * @param entity The gzipped entity.
+         */
+        GzipEntity(HttpEntity entity) {
+            super(entity);
+        }
+
+        /**
+         * Gets the unzipped content.
+         *
+         * @return A stream of the unzipped content.
+         * @throws IOException If the content is not valid gzip.
+         */
+        @Override
+        public InputStream getContent() throws IOException {
+            InputStream compressed = new CountingInputStream(wrappedEntity.getContent(),
+                    sCompressedBytes);
+            return new CountingInputStream(new GZIPInputStream(compressed), sUncompressedBytes);
+        }
+
+        /**
+         * The unzipped length is not known ahead of time.
+         *
+         * @return -1 for unknown.
+         */
+        @Override
+        public long getContentLength() {
+            return -1;
+        }
+
+        /**
+         * The content handed out is no longer encoded.
+         *
+         * @return null for no encoding.
+         */
+        @Override
+        public Header getContentEncoding() {
+            return null;
+        }
+    }
+
+    /**
+     * Adds the number of bytes read from a stream to a counter.
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        private final AtomicLong mCounter;
+
+        /**
+         * Wraps a stream to count.
+         *
+         * @param in The stream being counted.
+         * @param counter Counter to add the bytes to.
+         */
+        CountingInputStream(InputStream in, AtomicLong counter) {
+            super(in);
+            mCounter = counter;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int value = super.read();
+            if (value >= 0) {
+                mCounter.incrementAndGet();
+            }
+            return value;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = super.read(buffer, offset, count);
+            if (read > 0) {
+                mCounter.addAndGet(read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            long skipped = super.skip(count);
+            mCounter.addAndGet(skipped);
+            return skipped;
+        }
+    }
+}
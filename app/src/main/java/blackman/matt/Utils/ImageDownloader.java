@@ -18,110 +18,248 @@
 
 package blackman.matt.Utils;
 
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
+import android.app.NotificationManager;
+import android.content.Context;
+import android.media.MediaScannerConnection;
 import android.os.AsyncTask;
 import android.os.Environment;
+import android.support.v4.app.NotificationCompat;
 import android.util.Log;
 
-import java.io.ByteArrayOutputStream;
+import com.nostra13.universalimageloader.core.ImageLoader;
+import com.nostra13.universalimageloader.utils.DiskCacheUtils;
+
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileNotFoundException;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.security.MessageDigest;
 
 import blackman.matt.board.ImageFile;
+import blackman.matt.download.MediaHash;
+import blackman.matt.download.SavedMediaDatabase;
+import blackman.matt.infinitebrowser.R;
 
 /**
- * Downloads images from 8chan based on a image file.
+ * Downloads images from 8chan based on a image file. The file is saved byte for byte as the
+ * site sent it, streamed through a small buffer on a background thread, so any format is kept
+ * and the image is never decoded. If the image loader already has the file on disk it is copied
+ * from there instead of being downloaded again. Progress is shown in a notification.
+ *
+ * Images already saved are found in the {@link SavedMediaDatabase} and not saved again, and a
+ * saved image never overwrites a different one with the same name.
  *
  * Created by Matt on 11/23/2014.
  */
-public class ImageDownloader extends AsyncTask<Void, Void, Bitmap> {
-    private ImageFile mImage;
+public class ImageDownloader extends AsyncTask<Void, Integer, File> {
+    private static final String TAG = "ImageDownloader";
+    private static final int BUFFER_SIZE = 8 * 1024;
+    private static final String PART_EXT = ".part";
+
+    private final Context mContext;
+    private final ImageFile mImage;
+    private final NotificationManager mNotifications;
+    private final NotificationCompat.Builder mNotification;
+    private final int mNotificationId;
+    private boolean mAlreadySaved = false;
 
     /**
      * Constructor to store the image file being saved.
      *
+     * @param context Context of the caller.
      * @param image Image file to be saved.
      */
-    public ImageDownloader(ImageFile image) {
+    public ImageDownloader(Context context, ImageFile image) {
+        mContext = context.getApplicationContext();
         mImage = image;
+        mNotifications =
+                (NotificationManager) mContext.getSystemService(Context.NOTIFICATION_SERVICE);
+        mNotification = new NotificationCompat.Builder(mContext)
+                .setContentTitle(image.getFileName());
+        mNotificationId = image.getFullUrl().hashCode();
+    }
+
+    /**
+     * Gets the folder saved images go in.
+     *
+     * @return The folder in external storage for saved images.
+     */
+    public static File getSaveDirectory() {
+        return new File(Environment.getExternalStoragePublicDirectory(
+                Environment.DIRECTORY_PICTURES), "8chan");
+    }
+
+    /**
+     * Shows that the image is being saved.
+     */
+    @Override
+    protected void onPreExecute() {
+        mNotification.setSmallIcon(android.R.drawable.stat_sys_download)
+                .setContentText(mContext.getString(R.string.download_saving))
+                .setProgress(0, 0, true)
+                .setOngoing(true);
+        mNotifications.notify(mNotificationId, mNotification.build());
     }
 
     /**
-     * Downloads an image from the web and stores it in a local bitmap.
+     * Saves the image in external storage, copying it out of the image loader's disk cache if
+     * it is there and downloading it otherwise.
      *
      * @param params Nothing
-     * @return The bitmap from the web or null if loading failed.
+     * @return The saved file or null if saving failed.
      */
     @Override
-    protected Bitmap doInBackground(Void... params) {
-        Bitmap bmp = null;
+    protected File doInBackground(Void... params) {
+        File pictureDir = getSaveDirectory();
+        if(!pictureDir.exists() && !pictureDir.mkdirs()) {
+            Log.e(TAG, "Could not create " + pictureDir);
+            return null;
+        }
+
+        SavedMediaDatabase savedMedia = SavedMediaDatabase.getInstance(mContext);
+        File file = savedMedia.findSaved(mImage.getMd5(), mImage.getRootBoard(),
+                mImage.getTim());
+        if (file != null) {
+            mAlreadySaved = true;
+            return file;
+        }
+
+        // Written to the side first so a failed save never leaves half an image behind.
+        File part = new File(pictureDir, mImage.getRootBoard() + "-" + mImage.getTim()
+                + PART_EXT);
+        long startTime = System.currentTimeMillis();
+        InputStream in = null;
+        OutputStream out = null;
+        HttpURLConnection connection = null;
         try {
-            URL url = new URL(mImage.getFullUrl());
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-            connection.setDoInput(true);
-            connection.connect();
-            InputStream input = connection.getInputStream();
-            bmp = BitmapFactory.decodeStream(input);
+            long length;
+            File cached = DiskCacheUtils.findInCache(mImage.getFullUrl(),
+                    ImageLoader.getInstance().getDiskCache());
+            if (cached != null && cached.exists()) {
+                in = new FileInputStream(cached);
+                length = cached.length();
+            } else {
+                connection = (HttpURLConnection) new URL(mImage.getFullUrl()).openConnection();
+                connection.connect();
+                if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                    throw new IOException("Saving " + mImage.getFullUrl() + " failed with status "
+                            + connection.getResponseCode());
+                }
+                in = connection.getInputStream();
+                length = connection.getContentLength();
+            }
+
+            out = new FileOutputStream(part);
+            MessageDigest digest = MediaHash.newDigest();
+            long copied = copy(in, out, digest, length);
+            out.close();
+            out = null;
 
+            file = savedMedia.keepDownload(part, pictureDir, mImage.getFileName(),
+                    MediaHash.toString(digest), mImage.getRootBoard(), mImage.getTim());
+            Log.d(TAG, "Saved " + copied + " bytes of " + file.getName()
+                    + (cached != null ? " from the cache" : "") + " in "
+                    + (System.currentTimeMillis() - startTime) + "ms");
+            return file;
         } catch (IOException e) {
             e.printStackTrace();
-            Log.e("getBmpFromUrl error: ", e.getMessage().toString());
+            closeQuietly(out);
+            part.delete();
+            return null;
+        } finally {
+            closeQuietly(in);
+            if (connection != null) {
+                connection.disconnect();
+            }
         }
-
-        return bmp;
     }
 
     /**
-     * After the image has been loaded from the web, this saves the image in a variety of
-     * formats on disk in external storage.
+     * Copies a stream into a file through a fixed buffer, reporting the progress as it goes.
      *
-     * @param bmp Bitmap being saved on local storage.
+     * @param in The image's bytes.
+     * @param out The file being written.
+     * @param digest Digest fed the image's bytes.
+     * @param length Length of the image in bytes, or -1 if it is not known.
+     * @return The number of bytes copied.
+     * @throws IOException If either stream fails.
      */
-    @Override
-    protected void onPostExecute(Bitmap bmp) {
-        if (bmp != null) {
-            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
-
-            if(mImage.getExtension().equals(".jpeg") || mImage.getExtension().equals(".jpg")) {
-                bmp.compress(Bitmap.CompressFormat.JPEG, 100, bytes);
-            } else if(mImage.getExtension().equals(".png")) {
-                bmp.compress(Bitmap.CompressFormat.PNG, 100, bytes);
-            } else if(mImage.getExtension().equals(".gif")) {
-                // TODO: Save gifs properly
-                bmp.compress(Bitmap.CompressFormat.JPEG, 100, bytes);
-            } else {
-                bmp.compress(Bitmap.CompressFormat.JPEG, 100, bytes);
-            }
-
-            File pictureDir = new File(Environment.getExternalStoragePublicDirectory(
-                    Environment.DIRECTORY_PICTURES) + File.separator + "8chan");
+    private long copy(InputStream in, OutputStream out, MessageDigest digest, long length)
+            throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long copied = 0;
+        int lastPercent = -1;
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+            digest.update(buffer, 0, read);
+            copied += read;
 
-            if(!pictureDir.exists()) {
-                pictureDir.mkdirs();
+            // Only reported when it changes so the notification is not rebuilt for every buffer
+            int percent = length > 0 ? (int) (copied * 100 / length) : -1;
+            if (percent != lastPercent) {
+                lastPercent = percent;
+                publishProgress(percent);
             }
+        }
+        return copied;
+    }
 
-            File file = new File(pictureDir, mImage.getFileName());
+    /**
+     * Updates the notification with how much has been saved.
+     *
+     * @param progress Percent saved, or -1 if the size of the image is not known.
+     */
+    @Override
+    protected void onProgressUpdate(Integer... progress) {
+        int percent = progress[progress.length - 1];
+        mNotification.setProgress(100, Math.max(percent, 0), percent < 0);
+        mNotifications.notify(mNotificationId, mNotification.build());
+    }
 
-            try {
-                file.createNewFile();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+    /**
+     * Tells the user if the image was saved and lets the gallery know about it.
+     *
+     * @param file The saved file or null if saving failed.
+     */
+    @Override
+    protected void onPostExecute(File file) {
+        int message;
+        if (file == null) {
+            message = R.string.download_failed;
+        } else if (mAlreadySaved) {
+            message = R.string.download_already_saved;
+        } else {
+            message = R.string.download_saved;
+        }
+        mNotification.setProgress(0, 0, false)
+                .setOngoing(false)
+                .setAutoCancel(true)
+                .setSmallIcon(file != null ? android.R.drawable.stat_sys_download_done
+                        : android.R.drawable.stat_notify_error)
+                .setContentText(mContext.getString(message));
+        mNotifications.notify(mNotificationId, mNotification.build());
 
-            FileOutputStream fos;
+        if (file != null && !mAlreadySaved) {
+            MediaScannerConnection.scanFile(mContext, new String[] { file.getPath() }, null,
+                    null);
+        }
+    }
 
+    /**
+     * Closes a stream, ignoring any error.
+     *
+     * @param stream The stream or null.
+     */
+    private static void closeQuietly(Closeable stream) {
+        if (stream != null) {
             try {
-                fos = new FileOutputStream(file);
-                fos.write(bytes.toByteArray());
-                fos.close();
-            } catch (FileNotFoundException e) {
-                e.printStackTrace();
+                stream.close();
             } catch (IOException e) {
                 e.printStackTrace();
             }
@@ -65,7 +65,7 @@ public class ImageLongPressDialog {
                                         mImage.getFullUrl()));
                                 break;
                             case 1: // Save image
-                                new ImageDownloader(mImage).execute();
+                                new ImageDownloader(mContext, mImage).execute();
                                 break;
                             case 2: // Open image in browser
                                 Intent browserIntent = new Intent(Intent.ACTION_VIEW,
@@ -20,64 +20,47 @@
 package blackman.matt.Utils;
 
 import android.os.AsyncTask;
+import android.os.Debug;
+import android.os.SystemClock;
 import android.util.Log;
-import android.view.View;
-import android.widget.ProgressBar;
-import android.widget.TextView;
-
-import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-import org.jsoup.Jsoup;
-import org.jsoup.nodes.Document;
-import org.jsoup.nodes.Element;
-import org.jsoup.select.Elements;
-
-import java.io.BufferedReader;
+
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
-import blackman.matt.board.ImageFile;
 import blackman.matt.board.Post;
-import blackman.matt.infinitebrowser.R;
+import blackman.matt.infinitebrowser.BuildConfig;
 
 /**
  * Takes in a list of urls and gets the html from them. Then it takes the html doc and
  * turns it into post cards to display.
+ * Posts are published back to the UI thread in small batches while the page is still being
+ * read, so the first posts can be shown before the download finishes.
  * This assumes you send it a link and doesn't check for null.
  */
-public class PageLoader extends AsyncTask<URL, Void, Boolean> {
+public class PageLoader extends AsyncTask<URL, Post, Boolean> {
     private List<Post> mPosts;
     private Boolean mIsOnRootPage;
     private String mRootBoard;
+    private long mStartTime;
+    private long mFirstPostTime = -1;
+    private Map<Long, Post> mKnownPosts;
+    private List<Post> mKnownPostList;
+    private boolean mHasValidators = false;
+    private String mETag;
+    private String mLastModified;
+    private ThreadSnapshotCache mSnapshots;
+    private String mSnapshotBoard;
+    private String mSnapshotThread;
+
+    private static final String TAG = "PageLoader";
 
-    private List<String> postIds = new ArrayList<String>();
-
-    private static final String postNo = "no";
-    private static final String postSubject = "sub";
-    private static final String postComment = "com";
-    private static final String postReplies = "replies";
-    private static final String postName = "name";
-    private static final String postStickied = "sticky";
-    private static final String postLocked = "locked";
-    private static final String postTime = "time";
-    private static final String postLastModified = "last_modified";
-    private static final String postFileName = "filename";
-    private static final String postFileSiteName = "tim";
-    private static final String postFileExt = "ext";
-    private static final String postFileSize = "fsize";
-    private static final String postFileHeight = "h";
-    private static final String postFileWidth = "w";
-    private static final String postFileThumbHeight = "tn_h";
-    private static final String postFileThumbWidth = "tn_w";
+    // Posts sent up to the UI thread at once after the first one
+    private static final int POST_BATCH_SIZE = 10;
 
     private PageLoadedNotifier mNotifier;
 
@@ -95,10 +78,70 @@ public class PageLoader extends AsyncTask<URL, Void, Boolean> {
     }
 
     /**
-     * Shows the progress bar and its text to the user.
+     * Sets the posts already on screen, so posts on the page that have not changed are reused
+     * instead of being formatted again.
+     *
+     * @param knownPosts Posts that were loaded before.
+     */
+    public void setKnownPosts(List<Post> knownPosts) {
+        mKnownPostList = new ArrayList<Post>(knownPosts);
+        mKnownPosts = new HashMap<Long, Post>(knownPosts.size());
+        for (Post post : knownPosts) {
+            mKnownPosts.put(post.postNo, post);
+        }
+    }
+
+    /**
+     * Sends the validators of the caller's own copy of the page instead of the ones cached by
+     * HttpLoader. If the page has not changed the known posts are loaded again as they are.
+     *
+     * @param eTag ETag the caller's copy was sent with, or null.
+     * @param lastModified Last-Modified the caller's copy was sent with, or null.
+     */
+    public void setValidators(String eTag, String lastModified) {
+        mHasValidators = true;
+        mETag = eTag;
+        mLastModified = lastModified;
+    }
+
+    /**
+     * Saves a snapshot of the thread once it has been read from the site.
+     *
+     * @param snapshots Cache to save the snapshot in.
+     * @param boardRoot Root of board EG /v/, /tech/, etc..
+     * @param threadNo The thread being loaded.
+     */
+    public void setSnapshotCache(ThreadSnapshotCache snapshots, String boardRoot,
+                                 String threadNo) {
+        mSnapshots = snapshots;
+        mSnapshotBoard = boardRoot;
+        mSnapshotThread = threadNo;
+    }
+
+    /**
+     * Gets the list the loaded posts are being added to.
+     *
+     * @return The list of loaded posts.
+     */
+    protected List<Post> getPosts() {
+        return mPosts;
+    }
+
+    /**
+     * Gets how long it took from starting the load to the first posts being added to the list.
+     *
+     * @return Time to the first post in milliseconds or -1 if no post has been added yet.
+     */
+    public long getTimeToFirstPost() {
+        return mFirstPostTime;
+    }
+
+    /**
+     * Starts the timer for the page load.
      */
     @Override
     protected void onPreExecute() {
+        mStartTime = SystemClock.elapsedRealtime();
     }
 
     /**
@@ -109,121 +152,110 @@ public class PageLoader extends AsyncTask<URL, Void, Boolean> {
      */
     @Override
     protected Boolean doInBackground(URL... urls) {
-        JSONObject ochPage = null;
-        Boolean pageLoaded;
+        Boolean pageLoaded = false;
         String pageUrl = urls[0].toString();
         mRootBoard = urls[0].getPath().split("/")[1];
 
-        HttpClient client = new DefaultHttpClient();
-        HttpGet request = new HttpGet(pageUrl);
-        try {
-            HttpResponse response = client.execute(request);
-
-            InputStream in = response.getEntity().getContent();
-            BufferedReader reader = new BufferedReader(new InputStreamReader(in));
-            StringBuilder str = new StringBuilder();
-            String line;
-            while((line = reader.readLine()) != null)
-            {
-                str.append(line);
+        final List<Post> batch = new ArrayList<Post>(POST_BATCH_SIZE);
+        final List<Post> decoded = new ArrayList<Post>();
+        PostJsonReader.PostDecodedListener listener = new PostJsonReader.PostDecodedListener() {
+            @Override
+            public void postDecoded(Post post) {
+                decoded.add(post);
+                batch.add(post);
+                // Send the OP up on its own so it is on screen as soon as possible
+                if (decoded.size() == 1 || batch.size() >= POST_BATCH_SIZE) {
+                    publishBatch(batch);
+                }
             }
-            in.close();
-            ochPage = new JSONObject(str.toString());
-        } catch (IOException e) {
-            e.printStackTrace();
-        } catch (JSONException e) {
-            e.printStackTrace();
-        }
+        };
 
-        if (ochPage != null) {
-            if(mIsOnRootPage) {
-                try {
-                    JSONArray threadsArray = ochPage.getJSONArray("threads");
-                    for(int i = 0; i < threadsArray.length(); i++) {
-                        mPosts.add(createPost(threadsArray.getJSONObject(i)
-                                .getJSONArray("posts").getJSONObject(0)));
+        try {
+            HttpLoader.Response response = mHasValidators
+                    ? HttpLoader.get(pageUrl, mETag, mLastModified) : HttpLoader.get(pageUrl);
+            try {
+                if (response.isNotModified()) {
+                    List<Post> cached = mHasValidators
+                            ? mKnownPostList : response.<List<Post>>getCachedResult();
+                    for (Post post : cached) {
+                        listener.postDecoded(post);
                     }
-                } catch (JSONException e) {
-                    e.printStackTrace();
-                }
-            } else {
-                try {
-                    JSONArray postsArray = ochPage.getJSONArray("posts");
-                    for(int i = 0; i < postsArray.length(); i++) {
-                        mPosts.add(createPost(postsArray.getJSONObject(i)));
+                } else {
+                    // Counts what this thread allocates reading the posts on debug builds
+                    boolean countAllocs = BuildConfig.DEBUG && !mIsOnRootPage;
+                    if (countAllocs) {
+                        Debug.resetThreadAllocSize();
+                        Debug.startAllocCounting();
+                    }
+                    PostJsonReader reader = new PostJsonReader(mRootBoard, listener);
+                    reader.setKnownPosts(mKnownPosts);
+                    try {
+                        reader.readPage(response.getContent(), mIsOnRootPage);
+                    } finally {
+                        if (countAllocs) {
+                            Debug.stopAllocCounting();
+                        }
+                    }
+                    if (countAllocs && !decoded.isEmpty()) {
+                        long allocated = Debug.getThreadAllocSize();
+                        Log.d(TAG, pageUrl + ": " + decoded.size() + " posts allocated "
+                                + allocated + " bytes, " + (allocated / decoded.size())
+                                + " bytes per post");
+                    }
+                    response.cacheResult(decoded);
+                    if (mSnapshots != null) {
+                        mSnapshots.write(mSnapshotBoard, mSnapshotThread, decoded,
+                                response.getETag(), response.getLastModified());
                     }
-                } catch (JSONException e) {
-                    e.printStackTrace();
                 }
+                pageLoaded = true;
+            } finally {
+                response.close();
             }
-            pageLoaded = true;
-        } else {
-            pageLoaded = false;
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (IllegalStateException e) {
+            e.printStackTrace();
         }
+        publishBatch(batch);
+
+        Log.d(TAG, pageUrl + ": " + decoded.size() + " posts read after "
+                + (SystemClock.elapsedRealtime() - mStartTime) + "ms");
         return pageLoaded;
     }
 
     /**
-     * After the page is read in, the pages are turned into fragments and are put on the
-     * screen.
+     * Sends the decoded posts up to the UI thread and starts a new batch.
+     *
+     * @param batch Posts decoded since the last batch was sent.
      */
-    @Override
-    protected void onPostExecute(Boolean loadSuccess) {
-        mNotifier.pageLoaded();
+    private void publishBatch(List<Post> batch) {
+        if (!batch.isEmpty()) {
+            publishProgress(batch.toArray(new Post[batch.size()]));
+            batch.clear();
+        }
     }
 
     /**
-     * Takes information from HTML elements and creates the OP post of a board
-     * or a thread and returns the newly created post.
+     * Adds a batch of newly decoded posts to the list on the UI thread.
      *
-     * @param postJson the post's JSON object.
-     * @return the newly created post.
+     * @param posts The batch of posts.
      */
-    private Post createPost(JSONObject postJson) {
-        List<ImageFile> images = new ArrayList<ImageFile>();
-        Post opPost = null;
-        // Create new instance of post with elements
-        try {
-            String fileName = postJson.optString(postFileName);
-            if(fileName != null && !fileName.equals("")) {
-                images.add(new ImageFile(mRootBoard, fileName,
-                        postJson.optString(postFileExt),
-                        postJson.getString(postFileSiteName),
-                        postJson.optInt(postFileWidth),
-                        postJson.optInt(postFileHeight),
-                        postJson.optInt(postFileThumbWidth),
-                        postJson.optInt(postFileThumbHeight),
-                        postJson.getInt(postFileSize)));
-            }
-
-            if(postJson.has("extra_files")) {
-                JSONArray multiFiles = postJson.getJSONArray("extra_files");
-                for (int i = 0; i < multiFiles.length(); i++) {
-                    JSONObject imageJson = multiFiles.getJSONObject(i);
-                    images.add(new ImageFile(mRootBoard,
-                            imageJson.getString(postFileName),
-                            imageJson.getString(postFileExt),
-                            imageJson.getString(postFileSiteName),
-                            imageJson.optInt(postFileWidth),
-                            imageJson.optInt(postFileHeight),
-                            imageJson.optInt(postFileThumbWidth),
-                            imageJson.optInt(postFileThumbHeight),
-                            imageJson.getInt(postFileSize)));
-                }
-            }
-
-            opPost = new Post(postJson.optString(postName),
-                    postJson.getString(postTime),
-                    postJson.getString(postNo),
-                    postJson.optString(postSubject),
-                    postJson.optString(postComment),
-                    postJson.optString(postReplies),
-                    images,
-                    mRootBoard);
-        } catch (JSONException e) {
-            e.printStackTrace();
+    @Override
+    protected void onProgressUpdate(Post... posts) {
+        if (mFirstPostTime < 0) {
+            mFirstPostTime = SystemClock.elapsedRealtime() - mStartTime;
+            Log.d(TAG, "First post visible after " + mFirstPostTime + "ms");
         }
+        Collections.addAll(mPosts, posts);
+    }
 
-        return opPost;
+    /**
+     * After the page is read in, the pages are turned into fragments and are put on the
+     * screen.
+     */
+    @Override
+    protected void onPostExecute(Boolean loadSuccess) {
+        mNotifier.pageLoaded();
     }
 }
@@ -0,0 +1,352 @@
+/*
+ * Infinity Browser 2014  Matt Blackman
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package blackman.matt.Utils;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import blackman.matt.board.ImageFile;
+import blackman.matt.board.Post;
+
+/**
+ * Reads a board or thread page from the 8chan JSON api one token at a time. Each post is handed
+ * to the listener as soon as its object has been read, so the whole page never has to be held
+ * in memory as a string or a JSON tree.
+ */
+public class PostJsonReader {
+    private static final String jsonThreads = "threads";
+    private static final String jsonPosts = "posts";
+    private static final String postNo = "no";
+    private static final String postSubject = "sub";
+    private static final String postComment = "com";
+    private static final String postReplies = "replies";
+    private static final String postOmittedReplies = "omitted_posts";
+    private static final String postOmittedImages = "omitted_images";
+    private static final String postName = "name";
+    private static final String postTime = "time";
+    private static final String postExtraFiles = "extra_files";
+    private static final String postFileName = "filename";
+    private static final String postFileSiteName = "tim";
+    private static final String postFileExt = "ext";
+    private static final String postFileSize = "fsize";
+    private static final String postFileHeight = "h";
+    private static final String postFileWidth = "w";
+    private static final String postFileThumbHeight = "tn_h";
+    private static final String postFileThumbWidth = "tn_w";
+    private static final String postFileMd5 = "md5";
+
+    private final String mRootBoard;
+    private final PostDecodedListener mListener;
+    private Map<Long, Post> mKnownPosts;
+
+    /**
+     * Called every time a post has been completely read from the page.
+     */
+    public interface PostDecodedListener {
+        public void postDecoded(Post post);
+    }
+
+    /**
+     * Creates a reader for pages on a single board.
+     *
+     * @param rootBoard The board the page belongs to.
+     * @param listener Receives each post as it is decoded.
+     */
+    public PostJsonReader(String rootBoard, PostDecodedListener listener) {
+        mRootBoard = rootBoard;
+        mListener = listener;
+    }
+
+    /**
+     * Sets posts that were already read in before. If a post on the page is unchanged from its
+     * known copy, the known copy is handed to the listener instead of formatting a new post.
+     *
+     * @param knownPosts The known posts by their post number.
+     */
+    public void setKnownPosts(Map<Long, Post> knownPosts) {
+        mKnownPosts = knownPosts;
+    }
+
+    /**
+     * Reads a whole page from the stream. Board index pages only send up the OP of every thread,
+     * thread pages send up every post.
+     *
+     * @param in The page's content. Closed when reading is finished.
+     * @param isRootPage If the page is a board index page or a thread.
+     * @throws IOException If the stream fails or the JSON is malformed.
+     */
+    public void readPage(InputStream in, boolean isRootPage) throws IOException {
+        JsonReader reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (isRootPage && name.equals(jsonThreads)) {
+                    readThreads(reader);
+                } else if (!isRootPage && name.equals(jsonPosts)) {
+                    readPosts(reader, false);
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Reads only the post numbers of a thread page, skipping over everything else. Much
+     * cheaper than reading the posts when only the size of the thread matters.
+     *
+     * @param in The thread page's content. Closed when reading is finished.
+     * @return The post numbers in the order they are on the page.
+     * @throws IOException If the stream fails or the JSON is malformed.
+     */
+    public static long[] readPostNumbers(InputStream in) throws IOException {
+        long[] numbers = new long[64];
+        int count = 0;
+        JsonReader reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (!reader.nextName().equals(jsonPosts)) {
+                    reader.skipValue();
+                    continue;
+                }
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        if (reader.nextName().equals(postNo)) {
+                            if (count == numbers.length) {
+                                numbers = Arrays.copyOf(numbers, count * 2);
+                            }
+                            numbers[count++] = reader.nextLong();
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                }
+                reader.endArray();
+            }
+            reader.endObject();
+        } finally {
+            reader.close();
+        }
+        return Arrays.copyOf(numbers, count);
+    }
+
+    /**
+     * Reads the threads array of a board index page.
+     *
+     * @param reader Reader positioned at the threads array.
+     * @throws IOException If the stream fails or the JSON is malformed.
+     */
+    private void readThreads(JsonReader reader) throws IOException {
+        reader.beginArray();
+        while (reader.hasNext()) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (reader.nextName().equals(jsonPosts)) {
+                    readPosts(reader, true);
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        }
+        reader.endArray();
+    }
+
+    /**
+     * Reads an array of posts, skipping over everything but the first if only the OP is wanted.
+     *
+     * @param reader Reader positioned at the posts array.
+     * @param opOnly If only the first post should be decoded.
+     * @throws IOException If the stream fails or the JSON is malformed.
+     */
+    private void readPosts(JsonReader reader, boolean opOnly) throws IOException {
+        boolean isFirst = true;
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (isFirst || !opOnly) {
+                mListener.postDecoded(readPost(reader));
+            } else {
+                reader.skipValue();
+            }
+            isFirst = false;
+        }
+        reader.endArray();
+    }
+
+    /**
+     * Reads a single post object and builds the post from it.
+     *
+     * @param reader Reader positioned at the post object.
+     * @return The newly created post, or the known copy of it if it did not change.
+     * @throws IOException If the stream fails or the JSON is malformed.
+     */
+    private Post readPost(JsonReader reader) throws IOException {
+        String name = "", subject = "", comment = "";
+        long time = 0, number = 0;
+        int replies = Post.NO_REPLY_COUNT;
+        int omittedReplies = 0, omittedImages = 0;
+        FileFields file = new FileFields();
+        List<ImageFile> extraImages = new ArrayList<ImageFile>();
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String field = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.skipValue();
+            } else if (field.equals(postName)) {
+                name = reader.nextString();
+            } else if (field.equals(postTime)) {
+                time = reader.nextLong();
+            } else if (field.equals(postNo)) {
+                number = reader.nextLong();
+            } else if (field.equals(postSubject)) {
+                subject = reader.nextString();
+            } else if (field.equals(postComment)) {
+                comment = reader.nextString();
+            } else if (field.equals(postReplies)) {
+                replies = reader.nextInt();
+            } else if (field.equals(postOmittedReplies)) {
+                omittedReplies = reader.nextInt();
+            } else if (field.equals(postOmittedImages)) {
+                omittedImages = reader.nextInt();
+            } else if (field.equals(postExtraFiles)) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    ImageFile image = readFile(reader);
+                    if (image != null) {
+                        extraImages.add(image);
+                    }
+                }
+                reader.endArray();
+            } else if (!file.read(field, reader)) {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        List<ImageFile> images = new ArrayList<ImageFile>(extraImages.size() + 1);
+        ImageFile image = file.build(mRootBoard);
+        if (image != null) {
+            images.add(image);
+        }
+        images.addAll(extraImages);
+
+        Post known = mKnownPosts != null ? mKnownPosts.get(number) : null;
+        if (known != null && known.isUnchanged(name, subject, comment, replies, omittedReplies,
+                omittedImages, images.size())) {
+            return known;
+        }
+
+        Post post = new Post(name, time, number, subject, comment, replies, images, mRootBoard);
+        post.omittedReplies = omittedReplies;
+        post.omittedImages = omittedImages;
+        return post;
+    }
+
+    /**
+     * Reads one of the objects in a post's extra files.
+     *
+     * @param reader Reader positioned at the file object.
+     * @return The file or null if it has no name.
+     * @throws IOException If the stream fails or the JSON is malformed.
+     */
+    private ImageFile readFile(JsonReader reader) throws IOException {
+        FileFields file = new FileFields();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String field = reader.nextName();
+            if (reader.peek() == JsonToken.NULL || !file.read(field, reader)) {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return file.build(mRootBoard);
+    }
+
+    /**
+     * Collects the file fields of a post or extra file while they are read in any order.
+     */
+    private static class FileFields {
+        String name, ext = "", tim = "", md5 = "";
+        int width, height, thumbWidth, thumbHeight, size;
+
+        /**
+         * Reads the next value if the field belongs to a file.
+         *
+         * @param field Name of the field being read.
+         * @param reader Reader positioned at the field's value.
+         * @return If the value was consumed.
+         * @throws IOException If the stream fails or the JSON is malformed.
+         */
+        boolean read(String field, JsonReader reader) throws IOException {
+            if (field.equals(postFileName)) {
+                name = reader.nextString();
+            } else if (field.equals(postFileExt)) {
+                ext = reader.nextString();
+            } else if (field.equals(postFileSiteName)) {
+                tim = reader.nextString();
+            } else if (field.equals(postFileWidth)) {
+                width = reader.nextInt();
+            } else if (field.equals(postFileHeight)) {
+                height = reader.nextInt();
+            } else if (field.equals(postFileThumbWidth)) {
+                thumbWidth = reader.nextInt();
+            } else if (field.equals(postFileThumbHeight)) {
+                thumbHeight = reader.nextInt();
+            } else if (field.equals(postFileSize)) {
+                size = reader.nextInt();
+            } else if (field.equals(postFileMd5)) {
+                md5 = reader.nextString();
+            } else {
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * Builds the image file from the fields that were read.
+         *
+         * @param rootBoard Board the image is on.
+         * @return The image file or null if there was no file.
+         */
+        ImageFile build(String rootBoard) {
+            if (name == null || name.equals("")) {
+                return null;
+            }
+            return new ImageFile(rootBoard, name, ext, tim, width, height, thumbWidth,
+                    thumbHeight, size, md5);
+        }
+    }
+}
@@ -0,0 +1,294 @@
+/*
+ * Infinity Browser 2014  Matt Blackman
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package blackman.matt.Utils;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import blackman.matt.board.Post;
+
+/**
+ * Keeps the parsed posts of recently opened threads on disk, so a thread that is opened again
+ * can be shown straight away while it is refreshed in the background. Each thread is one file
+ * holding the validators the page was sent with followed by its posts. The least recently used
+ * files are removed once the cache grows past its size limit.
+ */
+public class ThreadSnapshotCache {
+    private static final String TAG = "ThreadSnapshotCache";
+    private static final String CACHE_DIR = "threads";
+    private static final String SNAPSHOT_EXT = ".snap";
+    private static final String TEMP_EXT = ".tmp";
+
+    // Bumped whenever the post encoding changes so old snapshots are thrown away.
+    private static final int SNAPSHOT_VERSION = 4;
+
+    private static final long MAX_CACHE_SIZE = 4 * 1024 * 1024;
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private static ThreadSnapshotCache sInstance;
+
+    private final File mDirectory;
+
+    /**
+     * A thread read back from the cache.
+     */
+    public static class Snapshot {
+        public final List<Post> posts;
+        public final String eTag;
+        public final String lastModified;
+
+        /**
+         * Basic constructor.
+         *
+         * @param posts Posts of the thread.
+         * @param eTag ETag the thread was sent with, or null.
+         * @param lastModified Last-Modified the thread was sent with, or null.
+         */
+        public Snapshot(List<Post> posts, String eTag, String lastModified) {
+            this.posts = posts;
+            this.eTag = eTag;
+            this.lastModified = lastModified;
+        }
+    }
+
+    /**
+     * Gets the cache, creating it the first time.
+     *
+     * @param context Context of the caller.
+     * @return The snapshot cache.
+     */
+    public static synchronized ThreadSnapshotCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ThreadSnapshotCache(
+                    new File(context.getApplicationContext().getCacheDir(), CACHE_DIR));
+        }
+        return sInstance;
+    }
+
+    /**
+     * Creates a cache in the given directory.
+     *
+     * @param directory Where the snapshots are kept.
+     */
+    private ThreadSnapshotCache(File directory) {
+        mDirectory = directory;
+    }
+
+    /**
+     * Reads the snapshot of a thread. Must not be called on the UI thread.
+     *
+     * @param boardRoot Root of board EG /v/, /tech/, etc..
+     * @param threadNo The thread to read.
+     * @return The snapshot or null if there is none or it could not be read.
+     */
+    public Snapshot read(String boardRoot, String threadNo) {
+        File file = getFile(boardRoot, threadNo);
+        if (!file.exists()) {
+            return null;
+        }
+
+        long startTime = SystemClock.elapsedRealtime();
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file),
+                    BUFFER_SIZE));
+            if (in.readInt() != SNAPSHOT_VERSION) {
+                file.delete();
+                return null;
+            }
+
+            String eTag = in.readBoolean() ? in.readUTF() : null;
+            String lastModified = in.readBoolean() ? in.readUTF() : null;
+            int count = in.readInt();
+            // Every post takes more than a byte, so a count past the file's size is corrupt
+            if (count < 0 || count > file.length()) {
+                throw new IOException("Snapshot " + file + " has a bad post count " + count);
+            }
+            List<Post> posts = new ArrayList<Post>(count);
+            for (int i = 0; i < count; i++) {
+                posts.add(Post.readFrom(in, boardRoot));
+            }
+
+            // Reading counts as a use for the eviction order.
+            file.setLastModified(System.currentTimeMillis());
+
+            Log.d(TAG, "/" + boardRoot + "/" + threadNo + ": " + count + " posts read in "
+                    + (SystemClock.elapsedRealtime() - startTime) + "ms");
+            return new Snapshot(posts, eTag, lastModified);
+        } catch (IOException e) {
+            e.printStackTrace();
+            file.delete();
+            return null;
+        } catch (RuntimeException e) {
+            // Anything else a corrupt file can make the reads throw
+            e.printStackTrace();
+            file.delete();
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Writes the snapshot of a thread, replacing the old one. Must not be called on the UI
+     * thread.
+     *
+     * @param boardRoot Root of board EG /v/, /tech/, etc..
+     * @param threadNo The thread being written.
+     * @param posts Posts of the thread.
+     * @param eTag ETag the thread was sent with, or null.
+     * @param lastModified Last-Modified the thread was sent with, or null.
+     */
+    public void write(String boardRoot, String threadNo, List<Post> posts, String eTag,
+                      String lastModified) {
+        if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+            Log.e(TAG, "Could not create " + mDirectory);
+            return;
+        }
+
+        File file = getFile(boardRoot, threadNo);
+        // Written to the side first so a reader never sees half a snapshot.
+        File temp = new File(mDirectory, file.getName() + TEMP_EXT);
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp),
+                    BUFFER_SIZE));
+            out.writeInt(SNAPSHOT_VERSION);
+            writeNullable(out, eTag);
+            writeNullable(out, lastModified);
+            out.writeInt(posts.size());
+            for (Post post : posts) {
+                post.writeTo(out);
+            }
+            out.close();
+            out = null;
+
+            if (!temp.renameTo(file)) {
+                temp.delete();
+                return;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            closeQuietly(out);
+            temp.delete();
+            return;
+        }
+
+        trim();
+    }
+
+    /**
+     * Removes the snapshot of a thread.
+     *
+     * @param boardRoot Root of board EG /v/, /tech/, etc..
+     * @param threadNo The thread to remove.
+     */
+    public void remove(String boardRoot, String threadNo) {
+        getFile(boardRoot, threadNo).delete();
+    }
+
+    /**
+     * Deletes the least recently used snapshots until the cache fits in its size limit.
+     */
+    private synchronized void trim() {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        long size = 0;
+        for (File file : files) {
+            size += file.length();
+        }
+        if (size <= MAX_CACHE_SIZE) {
+            return;
+        }
+
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long left = lhs.lastModified();
+                long right = rhs.lastModified();
+                return left < right ? -1 : (left == right ? 0 : 1);
+            }
+        });
+
+        for (int i = 0; i < files.length && size > MAX_CACHE_SIZE; i++) {
+            if (files[i].getName().endsWith(SNAPSHOT_EXT)) {
+                size -= files[i].length();
+                files[i].delete();
+            }
+        }
+    }
+
+    /**
+     * Gets the file a thread's snapshot is kept in.
+     *
+     * @param boardRoot Root of board EG /v/, /tech/, etc..
+     * @param threadNo The thread.
+     * @return The snapshot file.
+     */
+    private File getFile(String boardRoot, String threadNo) {
+        return new File(mDirectory, boardRoot.replace("/", "") + "_" + threadNo + SNAPSHOT_EXT);
+    }
+
+    /**
+     * Writes a string that may be null.
+     *
+     * @param out Stream to write to.
+     * @param value The string or null.
+     * @throws IOException If the stream fails.
+     */
+    private static void writeNullable(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    /**
+     * Closes a stream, ignoring any error.
+     *
+     * @param stream The stream or null.
+     */
+    private static void closeQuietly(Closeable stream) {
+        if (stream != null) {
+            try {
+                stream.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
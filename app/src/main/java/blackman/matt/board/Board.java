@@ -19,7 +19,9 @@
 package blackman.matt.board;
 
 import android.app.Activity;
+import android.content.Context;
 import android.content.Intent;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.app.Fragment;
 import android.os.Looper;
@@ -43,9 +45,15 @@ import java.net.URL;
 import java.util.ArrayList;
 import java.util.List;
 
+import blackman.matt.Utils.ThreadSnapshotCache;
 import blackman.matt.catalog.CatalogActivity;
+import blackman.matt.download.MediaDownloadQueue;
 import blackman.matt.gallery.GalleryActivity;
 import blackman.matt.infinitebrowser.R;
+import blackman.matt.watcher.ThreadWatcher;
+import blackman.matt.watcher.ThreadWatcherDatabase;
+import blackman.matt.watcher.ThreadWatcherService;
+import blackman.matt.watcher.WatchedThread;
 
 
 /**
@@ -182,6 +190,16 @@ public class Board extends Fragment implements BoardPageLoader.PageLoaderRespons
                 Intent catalog = new Intent(getActivity(), CatalogActivity.class);
                 catalog.putExtra(CatalogActivity.ARG_CATALOG_BOARD, mBoardRoot);
                 startActivity(catalog);
+                return true;
+            case R.id.action_watch:
+                toggleWatched();
+                return true;
+            case R.id.action_download_all:
+                MediaDownloadQueue.getInstance(getActivity())
+                        .downloadThread(mPosts, mBoardRoot, mBoardThread);
+                Toast.makeText(getActivity(), R.string.download_all_queued,
+                        Toast.LENGTH_SHORT).show();
+                return true;
             default:
                 return super.onOptionsItemSelected(item);
         }
@@ -200,6 +218,33 @@ public class Board extends Fragment implements BoardPageLoader.PageLoaderRespons
             mBoardThread = getArguments().getString(ARG_BOARD_THREAD);
             mPostNo = getArguments().getString(ARG_BOARD_POST);
         }
+
+        if(mBoardThread != null) {
+            // Kept off the UI thread, this runs every time a thread is opened
+            final Context appContext = getActivity().getApplicationContext();
+            final String boardRoot = mBoardRoot;
+            final String threadNo = mBoardThread;
+            new Thread() {
+                public void run() {
+                    ThreadWatcherDatabase database = new ThreadWatcherDatabase(appContext);
+                    new ThreadWatcher(database).markRead(boardRoot, threadNo);
+                    database.close();
+                }
+            }.start();
+        }
+    }
+
+    /**
+     * Gets the JSON page of a thread.
+     *
+     * @param boardRoot Root of board EG /v/, /tech/, etc..
+     * @param threadNo The thread to get.
+     * @return Url of the thread's JSON.
+     * @throws MalformedURLException If the thread does not make a valid url.
+     */
+    public static URL getThreadUrl(String boardRoot, String threadNo)
+            throws MalformedURLException {
+        return new URL("https", "8chan.co", boardRoot + "/res/" + threadNo + ".json");
     }
 
     /**
@@ -225,20 +270,21 @@ public class Board extends Fragment implements BoardPageLoader.PageLoaderRespons
 
         mIsRootBoard = mBoardThread == null;
 
-        URL pageUrl = null;
-        try {
-            if (mIsRootBoard) {
+        if (mIsRootBoard) {
+            URL pageUrl = null;
+            try {
                 pageUrl = new URL("https", "8chan.co", mBoardRoot + "/0.json");
-            } else {
-                pageUrl = new URL("https", "8chan.co", mBoardRoot + "/res/" + mBoardThread + ".json");
+            } catch (MalformedURLException e) {
+                e.printStackTrace();
             }
-        } catch (MalformedURLException e) {
-            e.printStackTrace();
-        }
 
-        mPageGetter = new BoardPageLoader(mRootView, mPosts, mAdapter, mIsRootBoard);
-        mPageGetter.mResponse = this;
-        mPageGetter.execute(pageUrl);
+            mPageGetter = new BoardPageLoader(mRootView, mPosts, mAdapter, mIsRootBoard);
+            mPageGetter.mResponse = this;
+            mPageGetter.execute(pageUrl);
+        } else {
+            // Show the thread from disk first if it was opened before, then refresh it.
+            new SnapshotLoader().execute();
+        }
 
         mListView.setAdapter(mAdapter);
 
@@ -247,7 +293,11 @@ public class Board extends Fragment implements BoardPageLoader.PageLoaderRespons
         mListView.setOnScrollListener(mScrollListener);
 
         if(mPostNo != null) {
-            mAdapter.gotoPost(mPostNo);
+            try {
+                mAdapter.gotoPost(Long.parseLong(mPostNo));
+            } catch (NumberFormatException e) {
+                e.printStackTrace();
+            }
         }
 
         if(mBoardThread == null) {
@@ -309,6 +359,7 @@ public class Board extends Fragment implements BoardPageLoader.PageLoaderRespons
     @Override
     public void onDestroy() {
         //mPosts.clear();
+        mAdapter.getThumbnailPrefetcher().cancelAll();
         mAdapter.notifyDataSetChanged();
         mPosts = null;
         mAdapter = null;
@@ -389,17 +440,32 @@ public class Board extends Fragment implements BoardPageLoader.PageLoaderRespons
     }
 
     /**
-     * Refreshes the current board.
+     * Refreshes the current board. A thread is refreshed in place, only adding, changing and
+     * removing the posts that are different, while a board index is loaded again from the
+     * first page.
      */
     private void refreshBoard(){
+        // Still reading the snapshot, the thread is loaded right after.
+        if(mPageGetter == null) {
+            return;
+        }
+
         if(mScrollListener != null) {
             mScrollListener.resetBoardPage();
         }
 
-        mPosts.clear();
-        mAdapter.notifyDataSetChanged();
+        if(mIsRootBoard) {
+            mPosts.clear();
+            mAdapter.notifyDataSetChanged();
 
-        mPageGetter = new BoardPageLoader(mRootView, mPosts, mAdapter, mIsRootBoard);
+            mPageGetter = new BoardPageLoader(mRootView, mPosts, mAdapter, mIsRootBoard);
+        } else {
+            mPageGetter = new BoardPageLoader(mRootView, new ArrayList<Post>(), mAdapter,
+                    mIsRootBoard);
+            mPageGetter.setRefreshOf(mPosts);
+            mPageGetter.setSnapshotCache(ThreadSnapshotCache.getInstance(getActivity()),
+                    mBoardRoot, mBoardThread);
+        }
         mPageGetter.mResponse = this;
 
         URL pageUrl = null;
@@ -407,7 +473,7 @@ public class Board extends Fragment implements BoardPageLoader.PageLoaderRespons
             if (mIsRootBoard) {
                 pageUrl = new URL("https", "8chan.co", mBoardRoot + "/0.json");
             } else {
-                pageUrl = new URL("https", "8chan.co", mBoardRoot + "/res/" + mBoardThread + ".json");
+                pageUrl = getThreadUrl(mBoardRoot, mBoardThread);
             }
         } catch (MalformedURLException e) {
             e.printStackTrace();
@@ -416,19 +482,111 @@ public class Board extends Fragment implements BoardPageLoader.PageLoaderRespons
         mPageGetter.execute(pageUrl);
     }
 
+    /**
+     * Loads the thread from the site. If a snapshot of it was shown, only the changes since
+     * the snapshot are loaded and merged in.
+     *
+     * @param snapshot The snapshot on screen or null if there was none.
+     */
+    private void loadThread(ThreadSnapshotCache.Snapshot snapshot) {
+        if (snapshot == null) {
+            mPageGetter = new BoardPageLoader(mRootView, mPosts, mAdapter, mIsRootBoard);
+        } else {
+            mPageGetter = new BoardPageLoader(mRootView, new ArrayList<Post>(), mAdapter,
+                    mIsRootBoard);
+            mPageGetter.setRefreshOf(mPosts);
+            mPageGetter.setValidators(snapshot.eTag, snapshot.lastModified);
+        }
+        mPageGetter.setSnapshotCache(ThreadSnapshotCache.getInstance(getActivity()),
+                mBoardRoot, mBoardThread);
+        mPageGetter.mResponse = this;
+
+        try {
+            mPageGetter.execute(getThreadUrl(mBoardRoot, mBoardThread));
+        } catch (MalformedURLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Reads the snapshot of the thread off the UI thread and shows it before loading the
+     * thread from the site.
+     */
+    private class SnapshotLoader extends AsyncTask<Void, Void, ThreadSnapshotCache.Snapshot> {
+        private final ThreadSnapshotCache mSnapshots =
+                ThreadSnapshotCache.getInstance(getActivity());
+
+        @Override
+        protected ThreadSnapshotCache.Snapshot doInBackground(Void... params) {
+            return mSnapshots.read(mBoardRoot, mBoardThread);
+        }
+
+        @Override
+        protected void onPostExecute(ThreadSnapshotCache.Snapshot snapshot) {
+            // The fragment was destroyed while the snapshot was read.
+            if (mAdapter == null) {
+                return;
+            }
+            if (snapshot != null) {
+                mPosts.addAll(snapshot.posts);
+                mAdapter.notifyDataSetChanged();
+            }
+            loadThread(snapshot);
+        }
+    }
+
+    /**
+     * Starts watching the thread for new replies, or stops if it is already being watched.
+     */
+    private void toggleWatched() {
+        final Context appContext = getActivity().getApplicationContext();
+        final String boardRoot = mBoardRoot;
+        final String threadNo = mBoardThread;
+        final int postCount = mPosts.size();
+        final long lastPostNo = mPosts.isEmpty() ? WatchedThread.NO_POST
+                : mPosts.get(mPosts.size() - 1).postNo;
+
+        new AsyncTask<Void, Void, Integer>() {
+            @Override
+            protected Integer doInBackground(Void... params) {
+                ThreadWatcherDatabase database = new ThreadWatcherDatabase(appContext);
+                ThreadWatcher watcher = new ThreadWatcher(database);
+                int message;
+
+                if(watcher.isWatched(boardRoot, threadNo)) {
+                    watcher.unwatch(boardRoot, threadNo);
+                    message = R.string.watcher_stopped;
+                } else {
+                    watcher.watch(boardRoot, threadNo, postCount, lastPostNo);
+                    message = R.string.watcher_watching;
+                }
+                database.close();
+                return message;
+            }
+
+            @Override
+            protected void onPostExecute(Integer message) {
+                ThreadWatcherService.schedule(appContext);
+                Toast.makeText(appContext, message, Toast.LENGTH_SHORT).show();
+            }
+        }.execute();
+    }
+
     /**
      * This class is used to set the on scroll listener for the list view on the board.
-     * Now the page will load the next page on a board when the bottom is met.
+     * Now the page will load the next page on a board when the bottom is met, and the
+     * thumbnails of the posts about to come into view are loaded ahead of time.
      */
     public class EndlessScrollListener extends PauseOnScrollListener {
         private int currentPage = 0;
         private View mParent;
 
         /**
-         * Override constructor.
+         * Override constructor. Images keep loading while the list is dragged so thumbnails
+         * can be prefetched, and only stop during a fling.
          */
         public EndlessScrollListener() {
-            super(ImageLoader.getInstance(), true, true);
+            super(ImageLoader.getInstance(), false, true);
         }
 
         /**
@@ -451,6 +609,7 @@ public class Board extends Fragment implements BoardPageLoader.PageLoaderRespons
         @Override
         public void onScroll(AbsListView view, int firstVisibleItem,
                              int visibleItemCount, int totalItemCount) {
+            mAdapter.getThumbnailPrefetcher().onScroll(firstVisibleItem, visibleItemCount);
             if (mIsRootBoard && mPageLoaded &&
                     (totalItemCount - visibleItemCount) <= (firstVisibleItem + visibleItemCount)) {
                 URL newPage;
@@ -465,6 +624,20 @@ public class Board extends Fragment implements BoardPageLoader.PageLoaderRespons
             }
         }
 
+        /**
+         * Lets the thumbnail prefetcher know when the list comes to a stop.
+         *
+         * @param view The list view being scrolled on.
+         * @param scrollState The new scroll state.
+         */
+        @Override
+        public void onScrollStateChanged(AbsListView view, int scrollState) {
+            super.onScrollStateChanged(view, scrollState);
+            if (scrollState == SCROLL_STATE_IDLE) {
+                mAdapter.getThumbnailPrefetcher().onScrollStopped();
+            }
+        }
+
         /**
          * Resets to base page to load.
          */
@@ -18,6 +18,7 @@ public class BoardPageLoader extends PageLoader {
     private final ProgressBar mProgress;
     private final TextView mProgressText;
     private final PostArrayAdapter mAdapter;
+    private boolean mIsRefresh = false;
 
     public PageLoaderResponse mResponse;
 
@@ -35,6 +36,17 @@ public class BoardPageLoader extends PageLoader {
         mAdapter = adapter;
     }
 
+    /**
+     * Loads the page as a refresh of the posts already in the adapter. The loaded posts are
+     * collected off screen and merged into the adapter once the whole page is read.
+     *
+     * @param knownPosts The posts already in the adapter.
+     */
+    public void setRefreshOf(List<Post> knownPosts) {
+        mIsRefresh = true;
+        setKnownPosts(knownPosts);
+    }
+
     public interface PageLoaderResponse {
         public void setPageLoaded(Boolean isLoaded);
 
@@ -46,11 +58,28 @@ public class BoardPageLoader extends PageLoader {
      */
     @Override
     protected void onPreExecute() {
+        super.onPreExecute();
         mProgress.setVisibility(View.VISIBLE);
         mProgressText.setVisibility(View.VISIBLE);
         mResponse.setPageLoaded(false);
     }
 
+    /**
+     * Shows the newest batch of posts right away and hides the progress bar once the first
+     * posts are on screen.
+     *
+     * @param posts The batch of posts.
+     */
+    @Override
+    protected void onProgressUpdate(Post... posts) {
+        super.onProgressUpdate(posts);
+        if (!mIsRefresh) {
+            mAdapter.notifyDataSetChanged();
+            mProgress.setVisibility(View.GONE);
+            mProgressText.setVisibility(View.GONE);
+        }
+    }
+
     /**
      * After the page is read in, the pages are turned into fragments and are put on the
      * screen.
@@ -62,7 +91,11 @@ public class BoardPageLoader extends PageLoader {
         } else {
             mResponse.setPageLoaded(false);
         }
-        mAdapter.notifyDataSetChanged();
+        if (!mIsRefresh) {
+            mAdapter.notifyDataSetChanged();
+        } else if (loadSuccess) {
+            mAdapter.mergePosts(getPosts());
+        }
         mProgress.setVisibility(View.GONE);
         mProgressText.setVisibility(View.GONE);
     }
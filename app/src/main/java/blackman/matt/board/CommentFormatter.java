@@ -0,0 +1,465 @@
+/*
+ * Infinity Browser 2014  Matt Blackman
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package blackman.matt.board;
+
+import android.graphics.Typeface;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.style.ForegroundColorSpan;
+import android.text.style.StrikethroughSpan;
+import android.text.style.StyleSpan;
+import android.text.style.URLSpan;
+import android.text.style.UnderlineSpan;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Turns the HTML of an 8chan comment into styled text in a single pass over the string. Only
+ * the small set of tags 8chan puts in comments is understood, anything else is dropped and its
+ * text kept.
+ */
+public class CommentFormatter {
+    private static final int COLOR_RED_TEXT = 0xFFAF0A0F;
+    private static final int COLOR_GREEN_TEXT = 0xFF789922;
+    private static final String SITE_URL = "http://8chan.co";
+    private static final String REPLY_ONCLICK = "highlightReply";
+
+    private final String mHtml;
+    private final List<Long> mRepliedTo;
+    private final SpannableStringBuilder mText;
+    private final List<OpenTag> mOpenTags = new ArrayList<OpenTag>();
+    private int mPos = 0;
+
+    // Depth of open tags whose text is not shown, like the post too long notice.
+    private int mHiddenDepth = 0;
+
+    /**
+     * A tag that has been opened and not closed yet.
+     */
+    private static class OpenTag {
+        final String name;
+        final int start;
+        final Object[] spans;
+        final boolean hidden;
+
+        OpenTag(String name, int start, Object[] spans, boolean hidden) {
+            this.name = name;
+            this.start = start;
+            this.spans = spans;
+            this.hidden = hidden;
+        }
+    }
+
+    /**
+     * Formats a comment without collecting its replies, for posts whose replies are already
+     * known.
+     *
+     * @param html The comment as sent by 8chan.
+     * @return The styled comment.
+     */
+    public static CharSequence format(String html) {
+        return format(html, null);
+    }
+
+    /**
+     * Formats a comment.
+     *
+     * @param html The comment as sent by 8chan.
+     * @param repliedTo Gets the numbers of the posts the comment replies to, or null to not
+     *                  collect them.
+     * @return The styled comment.
+     */
+    public static CharSequence format(String html, List<Long> repliedTo) {
+        if (html == null || html.length() == 0) {
+            return "";
+        }
+        return new CommentFormatter(html, repliedTo).run();
+    }
+
+    /**
+     * Finds the posts a comment replies to without formatting it. Much cheaper than
+     * {@link #format(String, List)} when only the replies are needed.
+     *
+     * @param html The comment as sent by 8chan.
+     * @param repliedTo Gets the numbers of the posts the comment replies to.
+     */
+    public static void findReplies(String html, List<Long> repliedTo) {
+        if (html == null) {
+            return;
+        }
+
+        int pos = html.indexOf(REPLY_ONCLICK);
+        while (pos >= 0) {
+            int tagStart = html.lastIndexOf('<', pos);
+            int tagEnd = html.indexOf('>', pos);
+            if (tagStart < 0 || tagEnd < 0) {
+                break;
+            }
+
+            String href = decodeEntities(getAttribute(html, "href", tagStart + 1, tagEnd));
+            addReply(href, repliedTo);
+            pos = html.indexOf(REPLY_ONCLICK, tagEnd);
+        }
+    }
+
+    /**
+     * Adds the post a reply link points to.
+     *
+     * @param href Where the reply link goes, the post number comes after the hash.
+     * @param repliedTo Gets the number of the post.
+     */
+    private static void addReply(String href, List<Long> repliedTo) {
+        int hash = href != null ? href.indexOf('#') : -1;
+        if (hash < 0) {
+            return;
+        }
+        try {
+            repliedTo.add(Long.parseLong(href.substring(hash + 1)));
+        } catch (NumberFormatException e) {
+            // Not a link to a post.
+        }
+    }
+
+    /**
+     * Sets up a formatter for one comment.
+     *
+     * @param html The comment as sent by 8chan.
+     * @param repliedTo Gets the numbers of the posts the comment replies to, or null.
+     */
+    private CommentFormatter(String html, List<Long> repliedTo) {
+        mHtml = html;
+        mRepliedTo = repliedTo;
+        mText = new SpannableStringBuilder();
+    }
+
+    /**
+     * Reads the whole comment.
+     *
+     * @return The styled comment.
+     */
+    private CharSequence run() {
+        int length = mHtml.length();
+        while (mPos < length) {
+            char c = mHtml.charAt(mPos);
+            if (c == '<') {
+                readTag();
+            } else if (c == '&') {
+                readEntity();
+            } else {
+                mPos++;
+                if (mHiddenDepth == 0) {
+                    // Line breaks only come from tags, like in a browser.
+                    mText.append(c == '\n' || c == '\r' || c == '\t' ? ' ' : c);
+                }
+            }
+        }
+
+        // Close anything left open by broken markup.
+        while (!mOpenTags.isEmpty()) {
+            closeTag(mOpenTags.size() - 1);
+        }
+        return mText;
+    }
+
+    /**
+     * Reads a tag starting at the current position and opens or closes it.
+     */
+    private void readTag() {
+        int end = mHtml.indexOf('>', mPos);
+        if (end < 0) {
+            // Not a tag, just a stray less than sign.
+            if (mHiddenDepth == 0) {
+                mText.append('<');
+            }
+            mPos++;
+            return;
+        }
+
+        int nameStart = mPos + 1;
+        boolean isClosing = nameStart < end && mHtml.charAt(nameStart) == '/';
+        if (isClosing) {
+            nameStart++;
+        }
+        int nameEnd = nameStart;
+        while (nameEnd < end && Character.isLetterOrDigit(mHtml.charAt(nameEnd))) {
+            nameEnd++;
+        }
+        String name = mHtml.substring(nameStart, nameEnd).toLowerCase();
+        int attrStart = nameEnd;
+        mPos = end + 1;
+
+        if (isClosing) {
+            for (int i = mOpenTags.size() - 1; i >= 0; i--) {
+                if (mOpenTags.get(i).name.equals(name)) {
+                    while (mOpenTags.size() > i) {
+                        closeTag(mOpenTags.size() - 1);
+                    }
+                    break;
+                }
+            }
+        } else if (name.equals("br")) {
+            if (mHiddenDepth == 0) {
+                mText.append('\n');
+            }
+        } else if (name.length() > 0 && mHtml.charAt(end - 1) != '/') {
+            openTag(name, attrStart, end);
+        }
+    }
+
+    /**
+     * Opens a tag and works out the spans it will put over its text.
+     *
+     * @param name Name of the tag.
+     * @param attrStart Where the tag's attributes start.
+     * @param attrEnd Where the tag's attributes end.
+     */
+    private void openTag(String name, int attrStart, int attrEnd) {
+        String cssClass = getAttribute(mHtml, "class", attrStart, attrEnd);
+        boolean hidden = hasClass(cssClass, "toolong");
+        List<Object> spans = new ArrayList<Object>(2);
+
+        if (name.equals("p") && mHiddenDepth == 0 && mText.length() > 0
+                && mText.charAt(mText.length() - 1) != '\n') {
+            mText.append('\n');
+        }
+
+        if (hasClass(cssClass, "heading")) {
+            spans.add(new ForegroundColorSpan(COLOR_RED_TEXT));
+            spans.add(new StyleSpan(Typeface.BOLD));
+        } else if (hasClass(cssClass, "quote")) {
+            spans.add(new ForegroundColorSpan(COLOR_GREEN_TEXT));
+        }
+
+        if (name.equals("strong") || name.equals("b")) {
+            spans.add(new StyleSpan(Typeface.BOLD));
+        } else if (name.equals("em") || name.equals("i")) {
+            spans.add(new StyleSpan(Typeface.ITALIC));
+        } else if (name.equals("u")) {
+            spans.add(new UnderlineSpan());
+        } else if (name.equals("s") || name.equals("strike") || name.equals("del")) {
+            spans.add(new StrikethroughSpan());
+        } else if (name.equals("a")) {
+            String href = decodeEntities(getAttribute(mHtml, "href", attrStart, attrEnd));
+            if (href != null) {
+                String onClick = getAttribute(mHtml, "onclick", attrStart, attrEnd);
+                if (onClick != null && onClick.startsWith(REPLY_ONCLICK)) {
+                    if (mHiddenDepth == 0 && mRepliedTo != null) {
+                        addReply(href, mRepliedTo);
+                    }
+                }
+                if (href.startsWith("/")) {
+                    href = SITE_URL + href;
+                }
+                spans.add(new URLSpan(href));
+            }
+        }
+
+        if (hidden) {
+            mHiddenDepth++;
+        }
+        mOpenTags.add(new OpenTag(name, mText.length(), spans.toArray(), hidden));
+    }
+
+    /**
+     * Closes an open tag and puts its spans over the text it held.
+     *
+     * @param index Index of the tag in the open tags.
+     */
+    private void closeTag(int index) {
+        OpenTag tag = mOpenTags.remove(index);
+        if (tag.hidden) {
+            mHiddenDepth--;
+        }
+
+        int end = mText.length();
+        if (end > tag.start) {
+            for (Object span : tag.spans) {
+                mText.setSpan(span, tag.start, end, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            }
+        }
+    }
+
+    /**
+     * Reads a character entity starting at the current position.
+     */
+    private void readEntity() {
+        int end = mHtml.indexOf(';', mPos);
+        // Entities are short, anything longer is a stray ampersand.
+        if (end < 0 || end - mPos > 10) {
+            if (mHiddenDepth == 0) {
+                mText.append('&');
+            }
+            mPos++;
+            return;
+        }
+
+        int decoded = decodeEntity(mHtml, mPos + 1, end);
+        if (decoded == 0) {
+            if (mHiddenDepth == 0) {
+                mText.append('&');
+            }
+            mPos++;
+            return;
+        }
+
+        if (mHiddenDepth == 0) {
+            if (Character.isSupplementaryCodePoint(decoded)) {
+                mText.append(new String(Character.toChars(decoded)));
+            } else {
+                mText.append((char) decoded);
+            }
+        }
+        mPos = end + 1;
+    }
+
+    /**
+     * Gets the value of an attribute inside a tag.
+     *
+     * @param html The comment holding the tag.
+     * @param name Name of the attribute.
+     * @param start Where the tag's attributes start.
+     * @param end Where the tag's attributes end.
+     * @return The value or null if the tag does not have the attribute.
+     */
+    private static String getAttribute(String html, String name, int start, int end) {
+        int pos = start;
+        while (pos < end) {
+            int found = html.indexOf(name, pos);
+            if (found < 0 || found >= end) {
+                return null;
+            }
+            pos = found + name.length();
+
+            // Must be a whole attribute name followed by an equals sign.
+            if (!Character.isWhitespace(html.charAt(found - 1)) || pos >= end
+                    || html.charAt(pos) != '=') {
+                continue;
+            }
+            pos++;
+            if (pos < end && (html.charAt(pos) == '"' || html.charAt(pos) == '\'')) {
+                char quote = html.charAt(pos);
+                int close = html.indexOf(quote, pos + 1);
+                if (close < 0 || close > end) {
+                    close = end;
+                }
+                return html.substring(pos + 1, close);
+            }
+            int valueEnd = pos;
+            while (valueEnd < end && !Character.isWhitespace(html.charAt(valueEnd))
+                    && html.charAt(valueEnd) != '/') {
+                valueEnd++;
+            }
+            return html.substring(pos, valueEnd);
+        }
+        return null;
+    }
+
+    /**
+     * Checks if a class attribute holds a class.
+     *
+     * @param cssClass The class attribute or null.
+     * @param name The class to look for.
+     * @return If the class is there.
+     */
+    private static boolean hasClass(String cssClass, String name) {
+        if (cssClass == null) {
+            return false;
+        }
+        int found = cssClass.indexOf(name);
+        while (found >= 0) {
+            int end = found + name.length();
+            if ((found == 0 || cssClass.charAt(found - 1) == ' ')
+                    && (end == cssClass.length() || cssClass.charAt(end) == ' ')) {
+                return true;
+            }
+            found = cssClass.indexOf(name, end);
+        }
+        return false;
+    }
+
+    /**
+     * Decodes the entities in an attribute value.
+     *
+     * @param value The value or null.
+     * @return The decoded value.
+     */
+    private static String decodeEntities(String value) {
+        if (value == null || value.indexOf('&') < 0) {
+            return value;
+        }
+        StringBuilder decoded = new StringBuilder(value.length());
+        int pos = 0;
+        while (pos < value.length()) {
+            char c = value.charAt(pos);
+            int end = c == '&' ? value.indexOf(';', pos) : -1;
+            int entity = end > 0 ? decodeEntity(value, pos + 1, end) : 0;
+            if (entity != 0) {
+                decoded.appendCodePoint(entity);
+                pos = end + 1;
+            } else {
+                decoded.append(c);
+                pos++;
+            }
+        }
+        return decoded.toString();
+    }
+
+    /**
+     * Decodes a single entity.
+     *
+     * @param text Text holding the entity.
+     * @param start Start of the entity's name, after the ampersand.
+     * @param end End of the entity's name, at the semicolon.
+     * @return The code point, which may be outside the 16 bit range of a char, or 0 if the
+     * entity is not known.
+     */
+    private static int decodeEntity(String text, int start, int end) {
+        if (start < end && text.charAt(start) == '#') {
+            int codePoint;
+            try {
+                if (start + 1 < end && (text.charAt(start + 1) == 'x'
+                        || text.charAt(start + 1) == 'X')) {
+                    codePoint = Integer.parseInt(text.substring(start + 2, end), 16);
+                } else {
+                    codePoint = Integer.parseInt(text.substring(start + 1, end));
+                }
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+            return Character.isValidCodePoint(codePoint) ? codePoint : 0;
+        }
+
+        String name = text.substring(start, end);
+        if (name.equals("gt")) {
+            return '>';
+        } else if (name.equals("lt")) {
+            return '<';
+        } else if (name.equals("amp")) {
+            return '&';
+        } else if (name.equals("quot")) {
+            return '"';
+        } else if (name.equals("apos")) {
+            return '\'';
+        } else if (name.equals("nbsp")) {
+            return ' ';
+        }
+        return 0;
+    }
+}
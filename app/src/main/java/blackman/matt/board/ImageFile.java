@@ -19,6 +19,10 @@
 
 package blackman.matt.board;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
 /**
  * Stores the information about a image on any board and returns different bits of information
  * for the user.
@@ -26,8 +30,14 @@ package blackman.matt.board;
  * Created by Matt on 11/18/2014.
  */
 public class ImageFile {
-    private final String mFileName, mRootBoard, mExt, mTim;
+    private static final String MEDIA_HOST = "https://media.8chan.co/";
+    private static final String THUMB_DIR = "/thumb/";
+    private static final String FULL_DIR = "/src/";
+
+    private final String mFileName, mRootBoard, mExt, mTim, mMd5;
     private final int mWidth, mHeight, mThumbWidth, mThumbHeight, mSize;
+    // Built the first time they are asked for, the same image is bound over and over.
+    private ImageKey mThumbnailKey, mFullKey;
 
     /**
      * Base constructor used to get all the info 8chan supplies about files.
@@ -40,10 +50,12 @@ public class ImageFile {
      * @param height Height of full sized image.
      * @param thumbWidth Width of thumbnail.
      * @param thumbHeight Height of thumbnail.
+     * @param fileSize Size of the full image in bytes.
+     * @param md5 Base64 MD5 of the full image as given by the site, or empty if it was not.
      */
     public ImageFile(String rootBoard, String fileName, String ext, String tim, int width,
-                     int height, int thumbWidth, int thumbHeight, int fileSize) {
-        this.mRootBoard = rootBoard;
+                     int height, int thumbWidth, int thumbHeight, int fileSize, String md5) {
+        this.mRootBoard = rootBoard.intern();
         this.mFileName = fileName;
         this.mExt = ext;
         this.mTim = tim;
@@ -52,6 +64,7 @@ public class ImageFile {
         this.mThumbHeight = thumbHeight;
         this.mThumbWidth = thumbWidth;
         this.mSize = fileSize;
+        this.mMd5 = md5;
     }
 
     /**
@@ -59,7 +72,7 @@ public class ImageFile {
      * @return thumbnail url.
      */
     public String getThumbnailUrl() {
-        return "https://media.8chan.co/" + mRootBoard + "/thumb/" + mTim + mExt;
+        return getThumbnailKey().url;
     }
 
     /**
@@ -67,7 +80,31 @@ public class ImageFile {
      * @return full sized image url.
      */
     public String getFullUrl() {
-        return "https://media.8chan.co/" + mRootBoard + "/src/" + mTim + mExt;
+        return getFullKey().url;
+    }
+
+    /**
+     * Gets the key of the thumbnail for the image loader.
+     *
+     * @return The thumbnail's key.
+     */
+    public ImageKey getThumbnailKey() {
+        if (mThumbnailKey == null) {
+            mThumbnailKey = new ImageKey(MEDIA_HOST + mRootBoard + THUMB_DIR + mTim + mExt);
+        }
+        return mThumbnailKey;
+    }
+
+    /**
+     * Gets the key of the full image for the image loader.
+     *
+     * @return The full image's key.
+     */
+    public ImageKey getFullKey() {
+        if (mFullKey == null) {
+            mFullKey = new ImageKey(MEDIA_HOST + mRootBoard + FULL_DIR + mTim + mExt);
+        }
+        return mFullKey;
     }
 
     /**
@@ -96,4 +133,89 @@ public class ImageFile {
     public String getExtension() {
         return mExt;
     }
+
+    /**
+     * Gets the width of the full image.
+     *
+     * @return Width in pixels, or 0 if the site did not give one.
+     */
+    public int getWidth() {
+        return mWidth;
+    }
+
+    /**
+     * Gets the height of the full image.
+     *
+     * @return Height in pixels, or 0 if the site did not give one.
+     */
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Gets the name the site stores the file under, unique on its board.
+     *
+     * @return The site's name for the file.
+     */
+    public String getTim() {
+        return mTim;
+    }
+
+    /**
+     * Gets the board the file was posted on.
+     *
+     * @return Root of board EG /v/, /tech/, etc..
+     */
+    public String getRootBoard() {
+        return mRootBoard;
+    }
+
+    /**
+     * Gets the hash of the full image's content.
+     *
+     * @return Base64 MD5 of the full image, or empty if the site did not give one.
+     */
+    public String getMd5() {
+        return mMd5;
+    }
+
+    /**
+     * Writes the file out in the compact form used by thread snapshots.
+     *
+     * @param out Stream to write to.
+     * @throws IOException If the stream fails.
+     */
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeUTF(mFileName);
+        out.writeUTF(mExt);
+        out.writeUTF(mTim);
+        out.writeInt(mWidth);
+        out.writeInt(mHeight);
+        out.writeInt(mThumbWidth);
+        out.writeInt(mThumbHeight);
+        out.writeInt(mSize);
+        out.writeUTF(mMd5);
+    }
+
+    /**
+     * Reads a file written by {@link #writeTo(DataOutputStream)}.
+     *
+     * @param in Stream to read from.
+     * @param rootBoard Board this image is on.
+     * @return The file that was read.
+     * @throws IOException If the stream fails.
+     */
+    public static ImageFile readFrom(DataInputStream in, String rootBoard) throws IOException {
+        String fileName = in.readUTF();
+        String ext = in.readUTF();
+        String tim = in.readUTF();
+        int width = in.readInt();
+        int height = in.readInt();
+        int thumbWidth = in.readInt();
+        int thumbHeight = in.readInt();
+        int size = in.readInt();
+        String md5 = in.readUTF();
+        return new ImageFile(rootBoard, fileName, ext, tim, width, height, thumbWidth,
+                thumbHeight, size, md5);
+    }
 }
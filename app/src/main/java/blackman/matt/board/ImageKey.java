@@ -0,0 +1,60 @@
+/*
+ * Infinity Browser 2014  Matt Blackman
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package blackman.matt.board;
+
+/**
+ * Identifies an image by its url. The hash is worked out once when the key is made, so a view
+ * can cheaply check if it already shows an image before asking the image loader for it again.
+ */
+public final class ImageKey {
+    public final String url;
+    private final int mHash;
+
+    /**
+     * Basic constructor.
+     *
+     * @param url Url of the image.
+     */
+    public ImageKey(String url) {
+        this.url = url;
+        this.mHash = url.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof ImageKey)) {
+            return false;
+        }
+        ImageKey key = (ImageKey) other;
+        return mHash == key.mHash && url.equals(key.url);
+    }
+
+    @Override
+    public int hashCode() {
+        return mHash;
+    }
+
+    @Override
+    public String toString() {
+        return url;
+    }
+}
@@ -22,15 +22,12 @@ package blackman.matt.board;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
-import org.jsoup.Jsoup;
-import org.jsoup.nodes.Document;
-import org.jsoup.nodes.Element;
-import org.jsoup.select.Elements;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * Holds the information of a post to be loaded into a post view.
@@ -57,20 +54,31 @@ public class Post {
     private static final String postFileWidth = "w";
     private static final String postFileThumbHeight = "tn_h";
     private static final String postFileThumbWidth = "tn_w";
+    private static final String postFileMd5 = "md5";
+
+    // Number of replies of posts that are not the OP of a thread on a board page
+    public static final int NO_REPLY_COUNT = -1;
+
+    // Most a snapshot can hold for one post, anything more means the file is corrupt
+    private static final int MAX_SNAPSHOT_STRING = 1024 * 1024;
+    private static final int MAX_SNAPSHOT_IMAGES = 64;
 
     public String userName;
-    public String postDate;
-    public String postNo;
+    public long postDate;
+    public long postNo;
     public String topic;
-    public String postBody;
+    public String comment;
     public String rootBoard;
-    public String numReplies;
-    public String omittedReplies;
-    public String omittedImages;
+    public int numReplies;
+    public int omittedReplies;
+    public int omittedImages;
     public List<ImageFile> images;
-    public List<String> repliedTo;
-    public List<String> repliedBy;
-    public Boolean isThumbnail;
+    public List<Long> repliedTo;
+    public List<Long> repliedBy;
+    public boolean isThumbnail;
+    public int commentHash;
+    // Boxed post number the body cache keys this post by, made the first time it is needed
+    Long cacheKey;
 
     /**
      * Basic constructor
@@ -79,21 +87,23 @@ public class Post {
      * @param rootBoard The root board of the post.
      */
     public Post(JSONObject object, String rootBoard) {
-        this.repliedTo = new ArrayList<String>();
-        this.repliedBy = new ArrayList<String>();
+        this.repliedTo = new ArrayList<Long>();
+        this.repliedBy = new ArrayList<Long>();
         this.images = new ArrayList<ImageFile>();
-        this.rootBoard = rootBoard;
+        this.rootBoard = rootBoard.intern();
         this.isThumbnail = true;
 
         try {
             this.userName = object.optString(postName);
-            this.postDate = object.getString(postTime);
-            this.postNo = object.getString(jsonPostNo);
+            this.postDate = object.getLong(postTime);
+            this.postNo = object.getLong(jsonPostNo);
             this.topic = object.optString(postSubject);
-            this.postBody = formatPostBody(object.optString(postComment));
-            this.numReplies = object.optString(postReplies);
-            this.omittedReplies = object.optString(postOmittedReplies);
-            this.omittedImages = object.optString(postOmittedImages);
+            this.comment = object.optString(postComment);
+            this.commentHash = comment.hashCode();
+            CommentFormatter.findReplies(comment, repliedTo);
+            this.numReplies = object.optInt(postReplies, NO_REPLY_COUNT);
+            this.omittedReplies = object.optInt(postOmittedReplies);
+            this.omittedImages = object.optInt(postOmittedImages);
 
             String fileName = object.optString(postFileName);
             if(fileName != null && !fileName.equals("")) {
@@ -104,7 +114,8 @@ public class Post {
                         object.optInt(postFileHeight),
                         object.optInt(postFileThumbWidth),
                         object.optInt(postFileThumbHeight),
-                        object.getInt(postFileSize)));
+                        object.getInt(postFileSize),
+                        object.optString(postFileMd5)));
             }
 
             if(object.has("extra_files")) {
@@ -119,7 +130,8 @@ public class Post {
                             imageJson.optInt(postFileHeight),
                             imageJson.optInt(postFileThumbWidth),
                             imageJson.optInt(postFileThumbHeight),
-                            imageJson.getInt(postFileSize)));
+                            imageJson.getInt(postFileSize),
+                            imageJson.optString(postFileMd5)));
                 }
             }
         } catch (JSONException e) {
@@ -128,51 +140,153 @@ public class Post {
     }
 
     /**
-     * Formats the HTML on the post text to accurately display it on the post.
+     * Constructor for posts that were already read in from a page.
      *
-     * @param post The unformatted text of the post.
-     * @return A formatted version of the post.
+     * @param userName Name of the poster.
+     * @param postDate Time the post was made.
+     * @param postNo Number of the post.
+     * @param topic Subject of the post.
+     * @param comment Unformatted text of the post.
+     * @param numReplies Number of replies to the post.
+     * @param images Files attached to the post.
+     * @param rootBoard The root board of the post.
      */
-    private String formatPostBody(String post) {
-        Document formattedText = Jsoup.parse(post);
-        Pattern p = Pattern.compile("^/.*/index\\.html");
-
-        // Red Text
-        Elements redTexts = formattedText.getElementsByClass("heading");
-        for(Element text : redTexts) {
-            text.wrap("<font color=\"#AF0A0F\"><strong></strong></font>");
-        }
+    public Post(String userName, long postDate, long postNo, String topic, String comment,
+                int numReplies, List<ImageFile> images, String rootBoard) {
+        this.repliedTo = new ArrayList<Long>();
+        this.repliedBy = new ArrayList<Long>();
+        this.images = images;
+        this.rootBoard = rootBoard.intern();
+        this.isThumbnail = true;
 
-        // Green text
-        Elements greenTexts = formattedText.getElementsByClass("quote");
-        for(Element text : greenTexts) {
-            text.wrap("<font color=\"#789922\"></font>");
-        }
+        this.userName = userName;
+        this.postDate = postDate;
+        this.postNo = postNo;
+        this.topic = topic;
+        this.comment = comment;
+        this.commentHash = comment.hashCode();
+        CommentFormatter.findReplies(comment, repliedTo);
+        this.numReplies = numReplies;
+        this.omittedReplies = 0;
+        this.omittedImages = 0;
+    }
 
-        // Board Links
-        Elements boardLinks = formattedText.select("a");
-        for(Element link : boardLinks) {
-            String url = link.attr("href");
-            Matcher m = p.matcher(url);
-            if(m.matches()) {
-                link.attr("href", "http://8chan.co" + url);
-            }
-        }
+    /**
+     * Constructor for posts read back from a thread snapshot, every field is filled in by
+     * {@link #readFrom(DataInputStream, String)}.
+     *
+     * @param rootBoard The root board of the post.
+     */
+    private Post(String rootBoard) {
+        this.repliedTo = new ArrayList<Long>();
+        this.repliedBy = new ArrayList<Long>();
+        this.images = new ArrayList<ImageFile>();
+        this.rootBoard = rootBoard.intern();
+        this.isThumbnail = true;
+    }
+
+    /**
+     * Checks if this post still matches a freshly read copy of it in everything that is shown,
+     * so it does not need to be formatted again. The comment hash is only a quick way out, the
+     * comments themselves are compared.
+     *
+     * @param name Name of the fresh copy's poster.
+     * @param subject Subject of the fresh copy.
+     * @param comment Unformatted text of the fresh copy.
+     * @param numReplies Reply count of the fresh copy.
+     * @param omittedReplies Omitted replies of the fresh copy.
+     * @param omittedImages Omitted images of the fresh copy.
+     * @param numImages Number of files attached to the fresh copy.
+     * @return If the post is unchanged.
+     */
+    public boolean isUnchanged(String name, String subject, String comment, int numReplies,
+                               int omittedReplies, int omittedImages, int numImages) {
+        return commentHash == comment.hashCode() && comment.equals(this.comment)
+                && name.equals(userName) && subject.equals(topic)
+                && numReplies == this.numReplies && omittedReplies == this.omittedReplies
+                && omittedImages == this.omittedImages && images.size() == numImages;
+    }
 
-        // Reply links
-        Elements replyLinks = formattedText.select("a[onclick^=highlightReply");
-        for(Element reply : replyLinks) {
-            repliedTo.add(reply.attr("href").split("#")[1]);
-            boardLinks.attr("href", "http://8chan.co" + reply.attr("href"));
+    /**
+     * Writes the post out in the compact form used by thread snapshots. The comment is written
+     * as sent by the site.
+     *
+     * @param out Stream to write to.
+     * @throws IOException If the stream fails.
+     */
+    public void writeTo(DataOutputStream out) throws IOException {
+        writeString(out, userName);
+        out.writeLong(postDate);
+        out.writeLong(postNo);
+        writeString(out, topic);
+        writeString(out, comment);
+        out.writeInt(numReplies);
+        out.writeInt(omittedReplies);
+        out.writeInt(omittedImages);
+        out.writeInt(images.size());
+        for (ImageFile image : images) {
+            image.writeTo(out);
         }
+    }
 
-        // Post too long text removal
-        Elements tooLongs = formattedText.getElementsByClass("toolong");
-        for(Element text : tooLongs) {
-            text.text("");
+    /**
+     * Reads a post written by {@link #writeTo(DataOutputStream)}.
+     *
+     * @param in Stream to read from.
+     * @param rootBoard The root board of the post.
+     * @return The post that was read.
+     * @throws IOException If the stream fails or the post is corrupt.
+     */
+    public static Post readFrom(DataInputStream in, String rootBoard) throws IOException {
+        Post post = new Post(rootBoard);
+        post.userName = readString(in);
+        post.postDate = in.readLong();
+        post.postNo = in.readLong();
+        post.topic = readString(in);
+        post.comment = readString(in);
+        post.commentHash = post.comment.hashCode();
+        CommentFormatter.findReplies(post.comment, post.repliedTo);
+        post.numReplies = in.readInt();
+        post.omittedReplies = in.readInt();
+        post.omittedImages = in.readInt();
+        int numImages = in.readInt();
+        if (numImages < 0 || numImages > MAX_SNAPSHOT_IMAGES) {
+            throw new IOException("Bad image count " + numImages);
+        }
+        for (int i = 0; i < numImages; i++) {
+            post.images.add(ImageFile.readFrom(in, post.rootBoard));
         }
+        return post;
+    }
+
+    /**
+     * Writes a string that may be too long for writeUTF.
+     *
+     * @param out Stream to write to.
+     * @param value The string, null is written as empty.
+     * @throws IOException If the stream fails.
+     */
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = (value != null ? value : "").getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
 
-        return formattedText.toString();
+    /**
+     * Reads a string written by {@link #writeString(DataOutputStream, String)}.
+     *
+     * @param in Stream to read from.
+     * @return The string.
+     * @throws IOException If the stream fails.
+     */
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_SNAPSHOT_STRING) {
+            throw new IOException("Bad string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
     }
 
     public static ArrayList<Post> fromJson(JSONArray jsonArray, String rootBoard) {
@@ -24,8 +24,8 @@ import android.content.Context;
 import android.content.DialogInterface;
 import android.graphics.Bitmap;
 import android.graphics.drawable.Drawable;
-import android.text.Html;
-import android.text.method.LinkMovementMethod;
+import android.text.TextPaint;
+import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.MenuItem;
 import android.view.View;
@@ -38,15 +38,22 @@ import android.widget.PopupMenu;
 import android.widget.ProgressBar;
 import android.widget.TextView;
 
+import com.nostra13.universalimageloader.core.DisplayImageOptions;
 import com.nostra13.universalimageloader.core.ImageLoader;
 import com.nostra13.universalimageloader.core.assist.FailReason;
 import com.nostra13.universalimageloader.core.imageaware.ImageAware;
 import com.nostra13.universalimageloader.core.imageaware.ImageViewAware;
 import com.nostra13.universalimageloader.core.listener.SimpleImageLoadingListener;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
+import blackman.matt.Utils.FullImageAware;
 import blackman.matt.utils.ImageLongPressDialog;
 import blackman.matt.infinitebrowser.R;
 
@@ -56,7 +63,23 @@ import blackman.matt.infinitebrowser.R;
  * Created by Matt on 10/26/2014.
  */
 class PostArrayAdapter extends BaseAdapter {
+    private static final String TAG = "PostArrayAdapter";
+
+    // Posts around the bound one whose bodies are formatted ahead of time
+    private static final int PREFETCH_AHEAD = 15;
+    private static final int PREFETCH_BEHIND = 5;
+
+    // Binds between logging the bind metrics
+    private static final int METRICS_INTERVAL = 200;
+
     private List<Post> mPosts = Collections.emptyList();
+    private final PostBodyCache mBodies = PostBodyCache.getInstance();
+    private final PostIndex mIndex = new PostIndex();
+    private final ThumbnailPrefetcher mThumbnails;
+    private Long mPendingPostNo;
+    private int mTextWidth = 0;
+    private int mBindCount = 0;
+    private long mBindTime = 0;
     private final Context mContext;
     private Board.OnReplyClickedListener mListener;
     private replyClickListener mPostReplyClicked;
@@ -65,33 +88,106 @@ class PostArrayAdapter extends BaseAdapter {
         public void gotoPost(int position);
     }
 
+    // Quotes of posts in this thread move the list instead of opening the thread again
+    private final PostBodyView.OnQuoteClickListener mQuoteClicked =
+            new PostBodyView.OnQuoteClickListener() {
+                @Override
+                public boolean onQuoteClicked(long postNo) {
+                    int position = mIndex.getPosition(postNo);
+                    if (position < 0) {
+                        return false;
+                    }
+                    mPostReplyClicked.gotoPost(position);
+                    return true;
+                }
+            };
+
     /**
      * Public constructor to handle taking in the list of views.
      * @param context Context of the caller.
      */
     public PostArrayAdapter(Context context) {
         mContext = context;
-
+        mThumbnails = new ThumbnailPrefetcher(this, context.getResources().getDisplayMetrics());
     }
 
     public void updatePosts(List<Post> posts, Board.OnReplyClickedListener listener,
                             replyClickListener replyListener) {
         mPosts = posts;
+        mIndex.invalidate();
+        mThumbnails.cancelAll();
         mListener = listener;
         mPostReplyClicked = replyListener;
         notifyDataSetChanged();
     }
 
-    public Boolean gotoPost(String postNo) {
-        int i = 0;
-        for (Post post : mPosts) {
-            if (post.postNo.equals(postNo)) {
-                mPostReplyClicked.gotoPost(i);
-                return true;
+    /**
+     * Gets the prefetcher that loads thumbnails ahead of the list.
+     *
+     * @return The thumbnail prefetcher.
+     */
+    ThumbnailPrefetcher getThumbnailPrefetcher() {
+        return mThumbnails;
+    }
+
+    /**
+     * Moves the list to a post. If the post has not been loaded yet the list moves to it as
+     * soon as it is.
+     *
+     * @param postNo Number of the post to move to.
+     * @return If the post was already loaded.
+     */
+    public Boolean gotoPost(long postNo) {
+        int position = mIndex.getPosition(postNo);
+        if (position < 0) {
+            mPendingPostNo = postNo;
+            return false;
+        }
+        mPendingPostNo = null;
+        mPostReplyClicked.gotoPost(position);
+        return true;
+    }
+
+    /**
+     * Merges a freshly loaded copy of the thread into the posts on screen. New posts are added to
+     * the end, changed posts are swapped in where they are and deleted posts are removed, so
+     * the rest of the thread and the scroll position stay as they are.
+     *
+     * @param freshPosts The freshly loaded posts of the thread.
+     * @return The number of new posts added.
+     */
+    public int mergePosts(List<Post> freshPosts) {
+        Map<Long, Post> freshByNo = new HashMap<Long, Post>(freshPosts.size());
+        for (Post post : freshPosts) {
+            freshByNo.put(post.postNo, post);
+        }
+
+        Set<Long> knownNos = new HashSet<Long>(mPosts.size());
+        for (int i = mPosts.size() - 1; i >= 0; i--) {
+            Post known = mPosts.get(i);
+            Post fresh = freshByNo.get(known.postNo);
+            knownNos.add(known.postNo);
+
+            if (fresh == null) {
+                mPosts.remove(i);
+            } else if (fresh != known) {
+                fresh.isThumbnail = known.isThumbnail;
+                mPosts.set(i, fresh);
+            }
+        }
+        // Posts were swapped or removed in the middle of the thread
+        mIndex.invalidate();
+
+        int added = 0;
+        for (Post post : freshPosts) {
+            if (!knownNos.contains(post.postNo)) {
+                mPosts.add(post);
+                added++;
             }
-            i++;
         }
-        return false;
+
+        notifyDataSetChanged();
+        return added;
     }
 
     /**
@@ -123,7 +219,17 @@ class PostArrayAdapter extends BaseAdapter {
      */
     @Override
     public long getItemId(int position) {
-        return Long.parseLong(mPosts.get(position).postNo);
+        return mPosts.get(position).postNo;
+    }
+
+    /**
+     * Post numbers do not change, so the list can keep its place when posts are merged in.
+     *
+     * @return true
+     */
+    @Override
+    public boolean hasStableIds() {
+        return true;
     }
 
     /**
@@ -136,6 +242,7 @@ class PostArrayAdapter extends BaseAdapter {
      */
     @Override
     public View getView(final int position, View convertView, ViewGroup parent) {
+        long bindStart = System.nanoTime();
         final Post post = getItem(position);
         final ViewHolder holder;
 
@@ -150,12 +257,13 @@ class PostArrayAdapter extends BaseAdapter {
             holder.postDate = (TextView) convertView.findViewById(R.id.tv_datetime);
             holder.postNo = (TextView) convertView.findViewById(R.id.tv_postno);
             holder.topic = (TextView) convertView.findViewById(R.id.tv_topic);
-            holder.postBody = (TextView) convertView.findViewById(R.id.tv_postText);
+            holder.postBody = (PostBodyView) convertView.findViewById(R.id.tv_postText);
             holder.replies = (TextView) convertView.findViewById(R.id.tv_number_replies);
             holder.postLayout = (LinearLayout) convertView.findViewById(R.id.ll_post_body);
             holder.menu = (ImageButton) convertView.findViewById(R.id.btn_post_menu);
             holder.progressImage = (ProgressBar) convertView.findViewById(R.id.progress_post_image);
 
+            holder.postBody.setOnQuoteClickListener(mQuoteClicked);
             holder.replies.setTag(holder);
             holder.image.setTag(holder);
 
@@ -165,11 +273,16 @@ class PostArrayAdapter extends BaseAdapter {
         }
 
         holder.username.setText(post.userName);
-        holder.postDate.setText(post.postDate);
+        holder.postDate.setText(String.valueOf(post.postDate));
         holder.postNo.setText("Post No. " + post.postNo);
         holder.topic.setText(post.topic);
-        holder.postBody.setText(Html.fromHtml(post.postBody));
-        holder.postBody.setMovementMethod(LinkMovementMethod.getInstance());
+        // Learn the text width from a row that was showing a post without an image
+        if(holder.textOnly && holder.postBody.getTextWidth() > 0) {
+            mTextWidth = holder.postBody.getTextWidth();
+        }
+        holder.textOnly = post.images.isEmpty();
+        holder.postBody.setPost(post);
+        prefetchBodies(position, holder.postBody.getPaint());
 
         // Add replies to post
         if(post.repliedBy.size() > 0) {
@@ -188,7 +301,7 @@ class PostArrayAdapter extends BaseAdapter {
                         switch (item.getItemId()) {
                             case R.id.menu_replies:
                                new AlertDialog.Builder(mContext).setTitle("Replies")
-                                        .setAdapter(new ArrayAdapter<String>(mContext,
+                                        .setAdapter(new ArrayAdapter<Long>(mContext,
                                                         android.R.layout.simple_list_item_1,
                                                         post.repliedBy),
                                                 new DialogInterface.OnClickListener() {
@@ -208,8 +321,8 @@ class PostArrayAdapter extends BaseAdapter {
         });
 
         // Set up reply button
-        if(!post.numReplies.equals("")) {
-            if(!post.numReplies.equals("0")) {
+        if(post.numReplies != Post.NO_REPLY_COUNT) {
+            if(post.numReplies > 0) {
                 holder.replies.setText("Post has " + post.numReplies + " replies");
             } else {
                 holder.replies.setText("Post has no replies :'(");
@@ -217,7 +330,7 @@ class PostArrayAdapter extends BaseAdapter {
             View.OnClickListener replyClick = new View.OnClickListener() {
                 @Override
                 public void onClick(View v) {
-                    mListener.onReplyClicked(post.rootBoard, post.postNo);
+                    mListener.onReplyClicked(post.rootBoard, String.valueOf(post.postNo));
                 }
             };
             convertView.setOnClickListener(replyClick);
@@ -232,15 +345,13 @@ class PostArrayAdapter extends BaseAdapter {
             holder.filename.setText(post.images.get(0).getFileInfo());
             holder.filename.setVisibility(View.VISIBLE);
 
-            holder.image.setImageBitmap(null);
-            String imageUrl;
-            ImageAware imageAware = new ImageViewAware(holder.image, false);
-
+            final ImageFile imageFile = post.images.get(0);
+            ImageKey imageKey;
             if(post.isThumbnail) {
-                imageUrl = post.images.get(0).getThumbnailUrl();
+                imageKey = imageFile.getThumbnailKey();
                 holder.postLayout.setOrientation(LinearLayout.HORIZONTAL);
             } else {
-                imageUrl = post.images.get(0).getFullUrl();
+                imageKey = imageFile.getFullKey();
                 holder.postLayout.setOrientation(LinearLayout.VERTICAL);
             }
 
@@ -252,47 +363,70 @@ class PostArrayAdapter extends BaseAdapter {
                 }
             });
 
-            ImageLoader.getInstance().displayImage(imageUrl, imageAware,
-                    new SimpleImageLoadingListener() {
-                        @Override
-                        public void onLoadingStarted(String imageUri, View view) {
-                            holder.progressImage.setVisibility(View.VISIBLE);
-                        }
-
-                        @Override
-                        public void onLoadingFailed(String imageUri, View view,
-                                                    FailReason failReason) {
-                            holder.progressImage.setVisibility(View.GONE);
-                            Drawable error = mContext.getResources()
-                                    .getDrawable(R.drawable.deadico);
-                            view.setVisibility(View.VISIBLE);
-                            ((ImageButton) view).setImageDrawable(error);
-                        }
-
-                        @Override
-                        public void onLoadingComplete(String imageUri, View view,
-                                                      Bitmap loadedImage) {
-                            holder.progressImage.setVisibility(View.GONE);
-                            view.setVisibility(View.VISIBLE);
-                        }
-                    });
+            // The row already shows or is loading this image, so there is nothing to do
+            if(!imageKey.equals(holder.imageKey)) {
+                holder.imageKey = imageKey;
+                holder.image.setImageBitmap(null);
+                ImageAware imageAware;
+                DisplayImageOptions options;
+                if(post.isThumbnail) {
+                    imageAware = new ImageViewAware(holder.image, false);
+                    options = null;
+                    mThumbnails.onBind(imageKey, imageAware);
+                } else {
+                    imageAware = new FullImageAware(holder.image, imageFile);
+                    options = FullImageAware.OPTIONS;
+                }
+                ImageLoader.getInstance().displayImage(imageKey.url, imageAware, options,
+                        new SimpleImageLoadingListener() {
+                            @Override
+                            public void onLoadingStarted(String imageUri, View view) {
+                                holder.progressImage.setVisibility(View.VISIBLE);
+                            }
+
+                            @Override
+                            public void onLoadingFailed(String imageUri, View view,
+                                                        FailReason failReason) {
+                                // Try again the next time the row is bound
+                                holder.imageKey = null;
+                                holder.progressImage.setVisibility(View.GONE);
+                                Drawable error = mContext.getResources()
+                                        .getDrawable(R.drawable.deadico);
+                                view.setVisibility(View.VISIBLE);
+                                ((ImageButton) view).setImageDrawable(error);
+                            }
+
+                            @Override
+                            public void onLoadingComplete(String imageUri, View view,
+                                                          Bitmap loadedImage) {
+                                holder.progressImage.setVisibility(View.GONE);
+                                view.setVisibility(View.VISIBLE);
+                            }
+                        });
+            }
             holder.image.setOnClickListener(new View.OnClickListener() {
                 @Override
                 public void onClick(View v) {
                     final ViewHolder myHolder = (ViewHolder) v.getTag();
                     final Post myPost = getItem(position);
-                    ImageAware imageAware = new ImageViewAware(myHolder.image, false);
-                    String imageUrl;
+                    ImageAware imageAware;
+                    DisplayImageOptions options;
+                    ImageKey imageKey;
 
                     if(myPost.isThumbnail) {
                         myPost.isThumbnail = false;
-                        imageUrl = post.images.get(0).getFullUrl();
+                        imageKey = imageFile.getFullKey();
+                        imageAware = new FullImageAware(myHolder.image, imageFile);
+                        options = FullImageAware.OPTIONS;
 
                     } else {
                         myPost.isThumbnail = true;
-                        imageUrl = post.images.get(0).getThumbnailUrl();
+                        imageKey = imageFile.getThumbnailKey();
+                        imageAware = new ImageViewAware(myHolder.image, false);
+                        options = null;
                     }
-                    ImageLoader.getInstance().displayImage(imageUrl, imageAware,
+                    myHolder.imageKey = imageKey;
+                    ImageLoader.getInstance().displayImage(imageKey.url, imageAware, options,
                             new SimpleImageLoadingListener() {
                                 @Override
                                 public void onLoadingStarted(String imageUri, View view) {
@@ -303,6 +437,7 @@ class PostArrayAdapter extends BaseAdapter {
                                 @Override
                                 public void onLoadingFailed(String imageUri, View view,
                                                             FailReason failReason) {
+                                    myHolder.imageKey = null;
                                     myHolder.progressImage.setVisibility(View.GONE);
                                     Drawable error = mContext.getResources()
                                             .getDrawable(R.drawable.deadico);
@@ -327,35 +462,82 @@ class PostArrayAdapter extends BaseAdapter {
                 }
             });
         } else {
+            holder.imageKey = null;
             holder.image.setVisibility(View.GONE);
             holder.filename.setVisibility(View.GONE);
         }
 
+        logBindTime(System.nanoTime() - bindStart);
         return convertView;
     }
 
+    /**
+     * Formats the bodies of the posts around a bound post ahead of time. Posts without an image
+     * are laid out too once the width of their text is known. Posts with an image sit beside a
+     * thumbnail of unknown size, so they are only formatted.
+     *
+     * @param position Position of the bound post.
+     * @param paint Paint the post bodies are drawn with.
+     */
+    private void prefetchBodies(int position, TextPaint paint) {
+        List<Post> window = mPosts.subList(Math.max(0, position - PREFETCH_BEHIND),
+                Math.min(mPosts.size(), position + PREFETCH_AHEAD));
+        if(mTextWidth <= 0) {
+            mBodies.prefetch(window);
+            return;
+        }
+
+        List<Post> textOnly = new ArrayList<Post>(window.size());
+        List<Post> withImages = new ArrayList<Post>(window.size());
+        for(Post windowPost : window) {
+            if(windowPost.images.isEmpty()) {
+                textOnly.add(windowPost);
+            } else {
+                withImages.add(windowPost);
+            }
+        }
+        mBodies.prefetch(textOnly, mTextWidth, paint);
+        mBodies.prefetch(withImages);
+    }
+
+    /**
+     * Adds up how long binding rows takes and every so often logs it along with how often the
+     * post bodies were already formatted and the thumbnails already loaded.
+     *
+     * @param bindTime Nanoseconds the last bind took.
+     */
+    private void logBindTime(long bindTime) {
+        mBindCount++;
+        mBindTime += bindTime;
+        if (mBindCount % METRICS_INTERVAL == 0) {
+            Log.d(TAG, "Average bind " + (mBindTime / mBindCount / 1000) + "us over "
+                    + mBindCount + " binds, body cache hit rate "
+                    + Math.round(mBodies.getHitRate() * 100) + "%, thumbnail hit rate "
+                    + Math.round(mThumbnails.getHitRate() * 100) + "%, "
+                    + mThumbnails.getStats());
+        }
+    }
+
+    /**
+     * Brings the positions and replies of every post up to date before the list is redrawn, and
+     * moves to the post waiting to be loaded if it is here now.
+     */
     @Override
     public void notifyDataSetChanged () {
+        mIndex.update(mPosts);
         super.notifyDataSetChanged();
 
-        // Start from last post and go up
-        for(int i = mPosts.size() - 1; i >= 0; i--) {
-            Post replyPost = mPosts.get(i);
-            for(String replied : replyPost.repliedTo) {
-                for(int j = i; j >= 0; j--) {
-                    Post post = mPosts.get(j);
-                    if(post.postNo.equals(replied) && !post.repliedBy.contains(replyPost.postNo)) {
-                        post.repliedBy.add(replyPost.postNo);
-                        break;
-                    }
-                }
-            }
+        if (mPendingPostNo != null) {
+            gotoPost(mPendingPostNo);
         }
     }
 
     static class ViewHolder {
         ImageButton image, menu;
-        TextView username, postDate, postNo, topic, postBody, replies, filename;
+        TextView username, postDate, postNo, topic, replies, filename;
+        PostBodyView postBody;
+        ImageKey imageKey;
+        boolean textOnly;
         LinearLayout postLayout;
         ProgressBar progressImage;
     }
@@ -0,0 +1,298 @@
+/*
+ * Infinity Browser 2014  Matt Blackman
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package blackman.matt.board;
+
+import android.text.Layout;
+import android.text.StaticLayout;
+import android.text.TextPaint;
+import android.util.LruCache;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Holds the formatted bodies of recently shown posts so a post is only formatted once no matter
+ * how often its row is bound. Bodies are formatted on a background thread ahead of the scroll
+ * position, and the least recently used ones are dropped once the cache is full.
+ *
+ * Once the width of the post text is known the bodies are laid out ahead of time as well, so
+ * binding a row only has to hand the finished layout to its {@link PostBodyView}.
+ */
+public class PostBodyCache {
+    // Size of the cache in characters of formatted text.
+    private static final int MAX_CACHED_CHARS = 256 * 1024;
+
+    private static PostBodyCache sInstance;
+
+    private final LruCache<Long, Body> mBodies;
+    private final ExecutorService mFormatter = Executors.newSingleThreadExecutor();
+    private final Set<Long> mPending = new HashSet<Long>();
+    private int mHits = 0;
+    private int mMisses = 0;
+
+    /**
+     * A formatted body along with the board and comment it was formatted from and its last
+     * layout.
+     */
+    private static class Body {
+        final String rootBoard;
+        final int commentHash;
+        final CharSequence text;
+        final Layout layout;
+
+        Body(String rootBoard, int commentHash, CharSequence text, Layout layout) {
+            this.rootBoard = rootBoard;
+            this.commentHash = commentHash;
+            this.text = text;
+            this.layout = layout;
+        }
+    }
+
+    /**
+     * Gets the cache, creating it the first time.
+     *
+     * @return The post body cache.
+     */
+    public static synchronized PostBodyCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new PostBodyCache();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Sets up the cache.
+     */
+    private PostBodyCache() {
+        mBodies = new LruCache<Long, Body>(MAX_CACHED_CHARS) {
+            @Override
+            protected int sizeOf(Long key, Body body) {
+                return Math.max(1, body.text.length());
+            }
+        };
+    }
+
+    /**
+     * Gets the formatted body of a post, formatting it right away if it is not cached.
+     *
+     * @param post The post.
+     * @return The formatted body.
+     */
+    public CharSequence get(Post post) {
+        Body body = getCached(post);
+        synchronized (this) {
+            if (body != null) {
+                mHits++;
+            } else {
+                mMisses++;
+            }
+        }
+        return body != null ? body.text : format(post);
+    }
+
+    /**
+     * Gets the body of a post laid out at a width, laying it out right away if it is not
+     * cached at that width. Must be called on the UI thread. Not counted in the hit rate, the
+     * bind that asks for it was already counted by {@link #peekLayout(Post, int)}.
+     *
+     * @param post The post.
+     * @param width Width of the text in pixels.
+     * @param paint Paint the text is drawn with.
+     * @return The laid out body.
+     */
+    public Layout getLayout(Post post, int width, TextPaint paint) {
+        Body body = getCached(post);
+        if (body != null && body.layout != null && body.layout.getWidth() == width) {
+            return body.layout;
+        }
+
+        CharSequence text = body != null ? body.text : format(post);
+        Layout layout = createLayout(text, width, paint);
+        mBodies.put(getKey(post), new Body(post.rootBoard, post.commentHash, text, layout));
+        return layout;
+    }
+
+    /**
+     * Gets the layout of a post if it is already laid out at a width, without laying it out.
+     * Called once for every bind, so it is what the hit rate counts.
+     *
+     * @param post The post.
+     * @param width Width of the text in pixels.
+     * @return The layout or null if there is none at that width.
+     */
+    public Layout peekLayout(Post post, int width) {
+        Layout layout = findLayout(post, width);
+        synchronized (this) {
+            if (layout != null) {
+                mHits++;
+            } else {
+                mMisses++;
+            }
+        }
+        return layout;
+    }
+
+    /**
+     * Formats the bodies of posts in the background so they are ready when they are shown.
+     *
+     * @param posts Posts to format, already cached ones are skipped.
+     */
+    public void prefetch(List<Post> posts) {
+        prefetch(posts, 0, null);
+    }
+
+    /**
+     * Formats and lays out the bodies of posts in the background so they are ready when they
+     * are shown.
+     *
+     * @param posts Posts to lay out, ones already laid out at the width are skipped.
+     * @param width Width of the text in pixels, or 0 to only format the bodies.
+     * @param paint Paint the text is drawn with, copied for every layout so the layouts never
+     *              share a paint with the UI thread.
+     */
+    public void prefetch(List<Post> posts, final int width, TextPaint paint) {
+        final boolean layOut = width > 0 && paint != null;
+        final List<Post> toFormat = new ArrayList<Post>(posts.size());
+        synchronized (mPending) {
+            for (Post post : posts) {
+                boolean ready = layOut
+                        ? findLayout(post, width) != null : getCached(post) != null;
+                if (!ready && mPending.add(getKey(post))) {
+                    toFormat.add(post);
+                }
+            }
+        }
+        if (toFormat.isEmpty()) {
+            return;
+        }
+        final TextPaint template = layOut ? copyPaint(paint) : null;
+
+        mFormatter.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (Post post : toFormat) {
+                    Body body = getCached(post);
+                    CharSequence text = body != null ? body.text : format(post);
+                    if (layOut && (body == null || body.layout == null
+                            || body.layout.getWidth() != width)) {
+                        Layout layout = createLayout(text, width, copyPaint(template));
+                        mBodies.put(getKey(post), new Body(post.rootBoard, post.commentHash,
+                                text, layout));
+                    }
+                    synchronized (mPending) {
+                        mPending.remove(getKey(post));
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Gets how often a bound post's body was already formatted.
+     *
+     * @return Hit rate from 0 to 1.
+     */
+    public synchronized float getHitRate() {
+        int total = mHits + mMisses;
+        return total > 0 ? (float) mHits / total : 0;
+    }
+
+    /**
+     * Formats a post's body and caches it.
+     *
+     * @param post The post.
+     * @return The formatted body.
+     */
+    private CharSequence format(Post post) {
+        // Replies were already found when the post was read.
+        CharSequence text = CommentFormatter.format(post.comment);
+        mBodies.put(getKey(post), new Body(post.rootBoard, post.commentHash, text, null));
+        return text;
+    }
+
+    /**
+     * Copies a paint along with its link color and density. TextPaint's copy constructor only
+     * copies what Paint holds, which would draw every link in the layout transparent.
+     *
+     * @param paint The paint to copy.
+     * @return The copy.
+     */
+    private static TextPaint copyPaint(TextPaint paint) {
+        TextPaint copy = new TextPaint();
+        copy.set(paint);
+        return copy;
+    }
+
+    /**
+     * Lays out a body.
+     *
+     * @param text The formatted body.
+     * @param width Width of the text in pixels.
+     * @param paint Paint the text is drawn with.
+     * @return The layout.
+     */
+    private static Layout createLayout(CharSequence text, int width, TextPaint paint) {
+        return new StaticLayout(text, paint, width, Layout.Alignment.ALIGN_NORMAL, 1f, 0f,
+                true);
+    }
+
+    /**
+     * Gets the layout of a post if it is already laid out at a width.
+     *
+     * @param post The post.
+     * @param width Width of the text in pixels.
+     * @return The layout or null if there is none at that width.
+     */
+    private Layout findLayout(Post post, int width) {
+        Body body = getCached(post);
+        return body != null && body.layout != null && body.layout.getWidth() == width
+                ? body.layout : null;
+    }
+
+    /**
+     * Gets the cached body of a post if it is still current.
+     *
+     * @param post The post.
+     * @return The body or null if it is not cached or the post was edited since.
+     */
+    private Body getCached(Post post) {
+        Body body = mBodies.get(getKey(post));
+        // Boards are interned, and a post with the same number on another board is a miss
+        return body != null && body.rootBoard == post.rootBoard
+                && body.commentHash == post.commentHash ? body : null;
+    }
+
+    /**
+     * Gets the key of a post in the cache, its number. The key is boxed once and kept on the
+     * post so binding a row does not allocate one.
+     *
+     * @param post The post.
+     * @return The key.
+     */
+    private static Long getKey(Post post) {
+        if (post.cacheKey == null) {
+            post.cacheKey = post.postNo;
+        }
+        return post.cacheKey;
+    }
+}
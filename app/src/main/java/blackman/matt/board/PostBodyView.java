@@ -0,0 +1,268 @@
+/*
+ * Infinity Browser 2014  Matt Blackman
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package blackman.matt.board;
+
+import android.content.Context;
+import android.content.res.ColorStateList;
+import android.content.res.TypedArray;
+import android.graphics.Canvas;
+import android.text.Layout;
+import android.text.Spanned;
+import android.text.TextPaint;
+import android.text.style.ClickableSpan;
+import android.text.style.URLSpan;
+import android.util.AttributeSet;
+import android.util.TypedValue;
+import android.view.MotionEvent;
+import android.view.View;
+
+/**
+ * Draws the body of a post from a layout built ahead of time by {@link PostBodyCache}, so
+ * binding a post does not have to measure and lay out its text on the UI thread. Links in the
+ * body are handled here since there is no TextView to do it.
+ */
+public class PostBodyView extends View {
+    // Sorted by attribute id as obtainStyledAttributes needs.
+    private static final int[] ATTRS = { android.R.attr.textSize, android.R.attr.textColor };
+
+    private final TextPaint mPaint = new TextPaint(TextPaint.ANTI_ALIAS_FLAG);
+    private final PostBodyCache mBodies = PostBodyCache.getInstance();
+    private Post mPost;
+    private Layout mLayout;
+    // If the cache already counted the post being bound as a hit or miss
+    private boolean mBindCounted;
+    private ClickableSpan mPressedLink;
+    private OnQuoteClickListener mQuoteListener;
+
+    /**
+     * Called when a link to a post is tapped.
+     */
+    public interface OnQuoteClickListener {
+        /**
+         * Handles a tapped link to a post.
+         *
+         * @param postNo Number of the linked post.
+         * @return If the link was handled, otherwise it is opened like any other link.
+         */
+        public boolean onQuoteClicked(long postNo);
+    }
+
+    public PostBodyView(Context context) {
+        this(context, null);
+    }
+
+    public PostBodyView(Context context, AttributeSet attrs) {
+        this(context, attrs, 0);
+    }
+
+    public PostBodyView(Context context, AttributeSet attrs, int defStyle) {
+        super(context, attrs, defStyle);
+        mPaint.density = getResources().getDisplayMetrics().density;
+
+        TypedArray theme = context.obtainStyledAttributes(new int[] {
+                android.R.attr.textColorPrimary, android.R.attr.textColorLink });
+        ColorStateList textColor = theme.getColorStateList(0);
+        ColorStateList linkColor = theme.getColorStateList(1);
+        theme.recycle();
+
+        TypedArray a = context.obtainStyledAttributes(attrs, ATTRS, defStyle, 0);
+        mPaint.setTextSize(a.getDimension(0, TypedValue.applyDimension(
+                TypedValue.COMPLEX_UNIT_SP, 14, getResources().getDisplayMetrics())));
+        if (a.hasValue(1)) {
+            textColor = a.getColorStateList(1);
+        }
+        a.recycle();
+
+        if (textColor != null) {
+            mPaint.setColor(textColor.getDefaultColor());
+        }
+        if (linkColor != null) {
+            mPaint.linkColor = linkColor.getDefaultColor();
+        }
+    }
+
+    /**
+     * Sets the listener for links to posts.
+     *
+     * @param listener The listener or null to open them like any other link.
+     */
+    public void setOnQuoteClickListener(OnQuoteClickListener listener) {
+        mQuoteListener = listener;
+    }
+
+    /**
+     * Gets the paint the body is drawn with.
+     *
+     * @return The paint.
+     */
+    public TextPaint getPaint() {
+        return mPaint;
+    }
+
+    /**
+     * Gets the width the body was last laid out at.
+     *
+     * @return Width of the text in pixels or 0 if it was never laid out.
+     */
+    public int getTextWidth() {
+        return mLayout != null ? mLayout.getWidth() : 0;
+    }
+
+    /**
+     * Shows the body of a post, using its prebuilt layout if it has one at the current width.
+     *
+     * @param post The post to show.
+     */
+    public void setPost(Post post) {
+        mPost = post;
+        mPressedLink = null;
+        mBindCounted = mLayout != null;
+        mLayout = mLayout != null ? mBodies.peekLayout(post, mLayout.getWidth()) : null;
+        requestLayout();
+        invalidate();
+    }
+
+    /**
+     * Takes the layout for the available width from the cache, laying it out only if it was
+     * not built ahead of time.
+     *
+     * @param widthMeasureSpec Width given by the parent.
+     * @param heightMeasureSpec Height given by the parent.
+     */
+    @Override
+    protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+        int widthMode = MeasureSpec.getMode(widthMeasureSpec);
+        int available = MeasureSpec.getSize(widthMeasureSpec);
+        int padding = getPaddingLeft() + getPaddingRight();
+        int textWidth = available - padding;
+
+        if (mPost == null || widthMode == MeasureSpec.UNSPECIFIED || textWidth <= 0) {
+            mLayout = null;
+        } else if (mLayout == null || mLayout.getWidth() != textWidth) {
+            // The first bind of a view has no width yet, so it is counted here instead
+            Layout prebuilt = mBindCounted ? null : mBodies.peekLayout(mPost, textWidth);
+            mBindCounted = true;
+            mLayout = prebuilt != null ? prebuilt : mBodies.getLayout(mPost, textWidth, mPaint);
+        }
+
+        int width = padding;
+        int height = getPaddingTop() + getPaddingBottom();
+        if (mLayout != null) {
+            float widest = 0;
+            for (int i = 0; i < mLayout.getLineCount(); i++) {
+                widest = Math.max(widest, mLayout.getLineWidth(i));
+            }
+            width += (int) Math.ceil(widest);
+            height += mLayout.getHeight();
+        }
+        if (widthMode == MeasureSpec.EXACTLY) {
+            width = available;
+        } else if (widthMode == MeasureSpec.AT_MOST) {
+            width = Math.min(width, available);
+        }
+
+        setMeasuredDimension(width, resolveSize(height, heightMeasureSpec));
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        if (mLayout == null) {
+            return;
+        }
+        canvas.save();
+        canvas.translate(getPaddingLeft(), getPaddingTop());
+        mLayout.draw(canvas);
+        canvas.restore();
+    }
+
+    /**
+     * Opens links that are tapped and leaves every other touch to the view's own click handling.
+     *
+     * @param event The touch event.
+     * @return If the event was handled.
+     */
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        int action = event.getActionMasked();
+        if (action == MotionEvent.ACTION_DOWN) {
+            mPressedLink = getLinkAt(event.getX(), event.getY());
+        } else if (action == MotionEvent.ACTION_UP && mPressedLink != null) {
+            ClickableSpan link = mPressedLink;
+            mPressedLink = null;
+            if (link == getLinkAt(event.getX(), event.getY()) && !handleQuote(link)) {
+                link.onClick(this);
+            }
+            return true;
+        } else if (action == MotionEvent.ACTION_CANCEL) {
+            mPressedLink = null;
+        }
+
+        return mPressedLink != null || super.onTouchEvent(event);
+    }
+
+    /**
+     * Hands a link to a post to the quote listener.
+     *
+     * @param link The tapped link.
+     * @return If the listener handled the link.
+     */
+    private boolean handleQuote(ClickableSpan link) {
+        if (mQuoteListener == null || !(link instanceof URLSpan)) {
+            return false;
+        }
+        String url = ((URLSpan) link).getURL();
+        int hash = url.lastIndexOf('#');
+        if (hash < 0) {
+            return false;
+        }
+        try {
+            return mQuoteListener.onQuoteClicked(Long.parseLong(url.substring(hash + 1)));
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Finds the link under a point in the view.
+     *
+     * @param x X position of the point.
+     * @param y Y position of the point.
+     * @return The link or null if there is none.
+     */
+    private ClickableSpan getLinkAt(float x, float y) {
+        if (mLayout == null || !(mLayout.getText() instanceof Spanned)) {
+            return null;
+        }
+
+        int textX = (int) x - getPaddingLeft();
+        int textY = (int) y - getPaddingTop();
+        if (textY < 0 || textY > mLayout.getHeight()) {
+            return null;
+        }
+        int line = mLayout.getLineForVertical(textY);
+        if (textX < mLayout.getLineLeft(line) || textX > mLayout.getLineRight(line)) {
+            return null;
+        }
+
+        int offset = mLayout.getOffsetForHorizontal(line, textX);
+        ClickableSpan[] links = ((Spanned) mLayout.getText()).getSpans(offset, offset,
+                ClickableSpan.class);
+        return links.length > 0 ? links[0] : null;
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Infinity Browser 2014  Matt Blackman
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package blackman.matt.board;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Indexes the posts of a thread by post number. Keeps the position of every post in the list
+ * and fills in which posts reply to each post. Every post is only looked at once as it is added
+ * to the end of the thread, so keeping the index up to date while a thread loads costs the same
+ * as indexing it once at the end.
+ */
+class PostIndex {
+    private final Map<Long, Integer> mPositions = new HashMap<Long, Integer>();
+    private int mIndexed = 0;
+    private Post mLastIndexed;
+
+    /**
+     * Indexes the posts added to the end of the list since the last update. If the list was
+     * changed in any other way the index is built again from the start.
+     *
+     * @param posts The posts of the thread.
+     */
+    public void update(List<Post> posts) {
+        if (mIndexed > posts.size()
+                || (mIndexed > 0 && posts.get(mIndexed - 1) != mLastIndexed)) {
+            invalidate();
+        }
+
+        if (mIndexed == 0) {
+            for (Post post : posts) {
+                post.repliedBy.clear();
+            }
+        }
+
+        for (int i = mIndexed; i < posts.size(); i++) {
+            Post reply = posts.get(i);
+            mPositions.put(reply.postNo, i);
+            for (Long replied : reply.repliedTo) {
+                Integer position = mPositions.get(replied);
+                if (position == null || position == i) {
+                    continue;
+                }
+                Post post = posts.get(position);
+                if (!post.repliedBy.contains(reply.postNo)) {
+                    post.repliedBy.add(reply.postNo);
+                }
+            }
+        }
+
+        mIndexed = posts.size();
+        mLastIndexed = mIndexed > 0 ? posts.get(mIndexed - 1) : null;
+    }
+
+    /**
+     * Gets where a post is in the list as of the last update.
+     *
+     * @param postNo Number of the post.
+     * @return The post's position or -1 if it is not in the list.
+     */
+    public int getPosition(long postNo) {
+        Integer position = mPositions.get(postNo);
+        return position != null ? position : -1;
+    }
+
+    /**
+     * Throws away the index so the next update builds it again. Needed when posts in the middle
+     * of the list were changed or removed.
+     */
+    public void invalidate() {
+        mPositions.clear();
+        mIndexed = 0;
+        mLastIndexed = null;
+    }
+}
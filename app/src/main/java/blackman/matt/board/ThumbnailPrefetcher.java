@@ -0,0 +1,268 @@
+/*
+ * Infinity Browser 2014  Matt Blackman
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package blackman.matt.board;
+
+import android.graphics.Bitmap;
+import android.os.SystemClock;
+import android.util.DisplayMetrics;
+import android.view.View;
+
+import com.nostra13.universalimageloader.core.ImageLoader;
+import com.nostra13.universalimageloader.core.assist.FailReason;
+import com.nostra13.universalimageloader.core.assist.ImageSize;
+import com.nostra13.universalimageloader.core.assist.ViewScaleType;
+import com.nostra13.universalimageloader.core.imageaware.ImageAware;
+import com.nostra13.universalimageloader.core.imageaware.NonViewAware;
+import com.nostra13.universalimageloader.core.listener.SimpleImageLoadingListener;
+import com.nostra13.universalimageloader.utils.ImageSizeUtils;
+import com.nostra13.universalimageloader.utils.MemoryCacheUtils;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Loads the thumbnails of the posts just past the edge of the list into the image cache before
+ * their rows are bound, so they are already there when they scroll into view.
+ *
+ * Posts are looked ahead of in the direction the list is moving, further the faster it moves.
+ * The list only pauses the image loader while it is flung, so thumbnails are prefetched while
+ * it is dragged, and once a fling stops the posts it was heading for are loaded. Only a few
+ * thumbnails are loaded at a time so rows on screen are not kept waiting, and loads for posts
+ * that have fallen out of range are cancelled. Every bind of a thumbnail is counted as a hit if
+ * the thumbnail was already in the memory cache.
+ */
+class ThumbnailPrefetcher {
+    // Posts looked ahead when the list is still and at full speed
+    private static final int MIN_AHEAD = 3;
+    private static final int MAX_AHEAD = 20;
+    // How far ahead of the list to look, in how long the list takes to get there
+    private static final long LOOKAHEAD_MS = 1000;
+    // Thumbnails loaded at once
+    private static final int MAX_IN_FLIGHT = 4;
+
+    private final PostArrayAdapter mAdapter;
+    private final ImageLoader mImageLoader = ImageLoader.getInstance();
+    // Same size as a row's thumbnail is loaded at, so both share a memory cache entry. Rows wrap
+    // their thumbnail, so the image loader sizes them to the display.
+    private final ImageSize mTargetSize;
+    // Loads that have not finished, by the position of their post
+    private final Map<Integer, NonViewAware> mInFlight = new HashMap<Integer, NonViewAware>();
+
+    private int mFirstVisible = -1;
+    private int mVisibleCount = 0;
+    private long mLastScrollTime = 0;
+    private float mRowsPerSecond = 0;
+    private boolean mScrollingUp = false;
+
+    private int mHits = 0;
+    private int mMisses = 0;
+    private int mPrefetched = 0;
+    private int mCancelled = 0;
+
+    /**
+     * Creates a prefetcher for the posts of an adapter.
+     *
+     * @param adapter Adapter holding the posts.
+     * @param metrics Metrics of the display, the most a thumbnail is loaded at.
+     */
+    ThumbnailPrefetcher(PostArrayAdapter adapter, DisplayMetrics metrics) {
+        mAdapter = adapter;
+        mTargetSize = new ImageSize(metrics.widthPixels, metrics.heightPixels);
+    }
+
+    /**
+     * Called whenever the list scrolls. Works out which way and how fast it is moving and loads
+     * the thumbnails in range.
+     *
+     * @param firstVisible Position of the first row on screen.
+     * @param visibleCount Number of rows on screen.
+     */
+    void onScroll(int firstVisible, int visibleCount) {
+        if (firstVisible == mFirstVisible && visibleCount == mVisibleCount) {
+            return;
+        }
+
+        long now = SystemClock.uptimeMillis();
+        if (mFirstVisible >= 0 && firstVisible != mFirstVisible) {
+            long elapsed = Math.max(1, now - mLastScrollTime);
+            float rowsPerSecond = Math.abs(firstVisible - mFirstVisible) * 1000f / elapsed;
+            // Smoothed so a single jumpy frame does not swing the range around
+            mRowsPerSecond = (mRowsPerSecond + rowsPerSecond) / 2;
+            mScrollingUp = firstVisible < mFirstVisible;
+        }
+        mLastScrollTime = now;
+        mFirstVisible = firstVisible;
+        mVisibleCount = visibleCount;
+        prefetch();
+    }
+
+    /**
+     * Called when the list stops moving. The range it was moving with is kept, so the posts a
+     * fling was heading for are still loaded now that the image loader is running again.
+     */
+    void onScrollStopped() {
+        prefetch();
+    }
+
+    /**
+     * Counts a row being bound to a thumbnail. A hit means the thumbnail is in the memory cache
+     * under the exact key the row loads it with.
+     *
+     * @param imageKey Key of the thumbnail.
+     * @param imageAware The row's image view the thumbnail is loaded into.
+     */
+    void onBind(ImageKey imageKey, ImageAware imageAware) {
+        ImageSize targetSize = ImageSizeUtils.defineTargetSizeForView(imageAware, mTargetSize);
+        if (isCached(imageKey.url, targetSize)) {
+            mHits++;
+        } else {
+            mMisses++;
+        }
+    }
+
+    /**
+     * Checks if an image is in the memory cache at a size.
+     *
+     * @param url Url of the image.
+     * @param targetSize Size the image is loaded at.
+     * @return If it is cached under that size's key.
+     */
+    private boolean isCached(String url, ImageSize targetSize) {
+        return mImageLoader.getMemoryCache()
+                .get(MemoryCacheUtils.generateKey(url, targetSize)) != null;
+    }
+
+    /**
+     * Gets the share of thumbnail binds that found the thumbnail already in memory.
+     *
+     * @return Hit rate from 0 to 1.
+     */
+    float getHitRate() {
+        int total = mHits + mMisses;
+        return total > 0 ? (float) mHits / total : 0;
+    }
+
+    /**
+     * Describes how much prefetching has been done, for the bind metrics.
+     *
+     * @return The prefetch counts.
+     */
+    String getStats() {
+        return mPrefetched + " thumbnails prefetched, " + mCancelled + " cancelled";
+    }
+
+    /**
+     * Cancels every prefetch, such as when the posts are replaced.
+     */
+    void cancelAll() {
+        for (NonViewAware imageAware : mInFlight.values()) {
+            mImageLoader.cancelDisplayTask(imageAware);
+            mCancelled++;
+        }
+        mInFlight.clear();
+        mFirstVisible = -1;
+        mVisibleCount = 0;
+        mRowsPerSecond = 0;
+    }
+
+    /**
+     * Cancels the loads that are out of range and starts loads for the posts in range, nearest
+     * the screen first.
+     */
+    private void prefetch() {
+        if (mFirstVisible < 0) {
+            return;
+        }
+        int count = mAdapter.getCount();
+        int ahead = Math.min(MAX_AHEAD,
+                MIN_AHEAD + Math.round(mRowsPerSecond * LOOKAHEAD_MS / 1000));
+        int start, end;
+        if (mScrollingUp) {
+            start = Math.max(0, mFirstVisible - ahead);
+            end = Math.min(count, mFirstVisible) - 1;
+        } else {
+            start = mFirstVisible + mVisibleCount;
+            end = Math.min(count - 1, start + ahead - 1);
+        }
+
+        Iterator<Map.Entry<Integer, NonViewAware>> inFlight = mInFlight.entrySet().iterator();
+        while (inFlight.hasNext()) {
+            Map.Entry<Integer, NonViewAware> entry = inFlight.next();
+            if (entry.getKey() < start || entry.getKey() > end) {
+                mImageLoader.cancelDisplayTask(entry.getValue());
+                inFlight.remove();
+                mCancelled++;
+            }
+        }
+
+        for (int i = 0; i <= end - start && mInFlight.size() < MAX_IN_FLIGHT; i++) {
+            int position = mScrollingUp ? end - i : start + i;
+            if (!mInFlight.containsKey(position)) {
+                load(position);
+            }
+        }
+    }
+
+    /**
+     * Loads the thumbnail of a post into the cache if it has one that is not cached yet.
+     *
+     * @param position Position of the post.
+     */
+    private void load(final int position) {
+        Post post = mAdapter.getItem(position);
+        if (post.images.isEmpty() || !post.isThumbnail) {
+            return;
+        }
+        String url = post.images.get(0).getThumbnailUrl();
+        if (isCached(url, mTargetSize)) {
+            return;
+        }
+
+        final NonViewAware imageAware = new NonViewAware(url, mTargetSize, ViewScaleType.CROP);
+        mInFlight.put(position, imageAware);
+        mPrefetched++;
+        mImageLoader.displayImage(url, imageAware, new SimpleImageLoadingListener() {
+            @Override
+            public void onLoadingComplete(String imageUri, View view, Bitmap loadedImage) {
+                finished();
+            }
+
+            @Override
+            public void onLoadingFailed(String imageUri, View view, FailReason failReason) {
+                finished();
+            }
+
+            @Override
+            public void onLoadingCancelled(String imageUri, View view) {
+                finished();
+            }
+
+            /**
+             * Frees the load's slot and fills it with the next post in range.
+             */
+            private void finished() {
+                if (mInFlight.get(position) == imageAware) {
+                    mInFlight.remove(position);
+                    prefetch();
+                }
+            }
+        });
+    }
+}
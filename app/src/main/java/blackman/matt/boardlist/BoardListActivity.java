@@ -24,9 +24,16 @@ import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.CancellationSignal;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.OperationCanceledException;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.text.TextUtils;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
@@ -39,22 +46,19 @@ import android.widget.Spinner;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.json.JSONException;
-import org.json.JSONObject;
-
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
 
+import blackman.matt.Utils.HttpLoader;
 import blackman.matt.infinitebrowser.R;
 
 public class BoardListActivity extends Activity implements SearchView.OnQueryTextListener,
         SearchView.OnCloseListener, BoardListCursorAdapter.BoardFavoritedListener {
+    private static final String TAG = "BoardListActivity";
+
+    // Validators of the board list that was last imported
+    private static final String PREF_BOARD_LIST_ETAG = "board_list_etag";
+    private static final String PREF_BOARD_LIST_LAST_MODIFIED = "board_list_last_modified";
 
     private String mDBOrderBy;
     private String mDBSortBy;
@@ -74,6 +78,16 @@ public class BoardListActivity extends Activity implements SearchView.OnQueryTex
     private LinearLayout mProgress;
     private ListView mBoardList;
 
+    // Time to wait after a keystroke before searching, so typing a word runs a single query
+    private static final long SEARCH_DELAY_MS = 150;
+
+    private HandlerThread mQueryThread;
+    private Handler mQueryHandler;
+    private final Handler mMainHandler = new Handler();
+    private Runnable mPendingQuery;
+    private CancellationSignal mRunningQuery;
+    private int mQueryGeneration = 0;
+
     /**
      * Interface to favorite a board when the user hits the favorite button.
      *
@@ -94,13 +108,16 @@ public class BoardListActivity extends Activity implements SearchView.OnQueryTex
         Toast toast = Toast.makeText(this, text, duration);
         toast.show();
 
-        list_db.favoriteBoard(boardLink, isChecked);
-
-
-        Cursor mCursor = list_db.getSortedSearch(mCurFilter, mDBSortBy, mDBOrderBy);
-
-        mAdapter.swapCursor(mCursor);
-        mAdapter.notifyDataSetChanged();
+        // Runs on the query thread ahead of the query so the list shows the change
+        final String favoriteLink = boardLink;
+        final boolean favorite = isChecked;
+        mQueryHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                list_db.favoriteBoard(favoriteLink, favorite);
+            }
+        });
+        updateDatabaseView(0);
     }
 
     /**
@@ -167,7 +184,7 @@ public class BoardListActivity extends Activity implements SearchView.OnQueryTex
             return true;
         }
         mCurFilter = newFilter;
-        updateDatabaseView();
+        updateDatabaseView(SEARCH_DELAY_MS);
         return true;
     }
 
@@ -183,6 +200,14 @@ public class BoardListActivity extends Activity implements SearchView.OnQueryTex
         mProgress = (LinearLayout) findViewById(R.id.progress_board_list);
         mBoardList = (ListView) findViewById(R.id.lv_board_list);
 
+        mQueryThread = new HandlerThread("BoardListQuery");
+        mQueryThread.start();
+        mQueryHandler = new Handler(mQueryThread.getLooper());
+
+        mAdapter = new BoardListCursorAdapter(this, null);
+        mAdapter.setListener(this);
+        mBoardList.setAdapter(mAdapter);
+
         initSpinners();
 
         SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(this);
@@ -192,19 +217,7 @@ public class BoardListActivity extends Activity implements SearchView.OnQueryTex
             new GetBoardList().execute();
         }
 
-
-        new Handler().post(new Runnable() {
-            @Override
-            public void run() {
-                Cursor cursor = list_db.getSortedSearch(mCurFilter,
-                        DEFAULT_SELECTED_COLUMN,
-                        DEFAULT_SORT_ORDER);
-                mAdapter = new BoardListCursorAdapter(BoardListActivity.this, cursor);
-                mAdapter.setListener(BoardListActivity.this);
-
-                mBoardList.setAdapter(mAdapter);
-            }
-        });
+        updateDatabaseView(0);
     }
 
     /**
@@ -216,6 +229,19 @@ public class BoardListActivity extends Activity implements SearchView.OnQueryTex
         list_db.close();
     }
 
+    /**
+     * Stops the query thread and lets go of the shown boards.
+     */
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (mRunningQuery != null) {
+            mRunningQuery.cancel();
+        }
+        mQueryThread.quit();
+        mAdapter.changeCursor(null);
+    }
+
     /**
      * When the option menu is created this handles the creation events.
      *
@@ -256,19 +282,64 @@ public class BoardListActivity extends Activity implements SearchView.OnQueryTex
     }
 
     /**
-     * Updates the list of boards based on the SQL selected by the SpinnerViews on the
-     * BoardList.
+     * Updates the list of boards based on the search and the SQL selected by the SpinnerViews
+     * on the BoardList. The query runs on the query thread and its cursor is swapped into the
+     * list when it is done. A newer update cancels any query that has not finished yet.
+     *
+     * @param delay Milliseconds to wait before querying, so quick changes only run one query.
      */
-    private void updateDatabaseView() {
-        new Handler().post(new Runnable() {
+    private void updateDatabaseView(long delay) {
+        final String filter = mCurFilter;
+        final String sortBy = mDBSortBy != null ? mDBSortBy : DEFAULT_SELECTED_COLUMN;
+        final String order = mDBOrderBy != null ? mDBOrderBy : DEFAULT_SORT_ORDER;
+        final int generation = ++mQueryGeneration;
+        final long requestTime = SystemClock.elapsedRealtime();
+        final CancellationSignal signal = new CancellationSignal();
+
+        if (mPendingQuery != null) {
+            mQueryHandler.removeCallbacks(mPendingQuery);
+        }
+        if (mRunningQuery != null) {
+            mRunningQuery.cancel();
+        }
+        mRunningQuery = signal;
+
+        mPendingQuery = new Runnable() {
             @Override
             public void run() {
-                Cursor qBoards = list_db.getSortedSearch(mCurFilter, mDBSortBy, mDBOrderBy);
+                long startTime = SystemClock.elapsedRealtime();
+                Cursor cursor = null;
+                try {
+                    cursor = list_db.getSortedSearch(filter, sortBy, order, signal);
+                    // Fills the cursor here instead of when the list first reads it
+                    cursor.getCount();
+                } catch (OperationCanceledException e) {
+                    if (cursor != null) {
+                        cursor.close();
+                    }
+                    return;
+                }
 
-                mAdapter.swapCursor(qBoards);
-                mAdapter.notifyDataSetChanged();
+                final Cursor boards = cursor;
+                final long queryTime = SystemClock.elapsedRealtime() - startTime;
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation != mQueryGeneration || isFinishing()) {
+                            boards.close();
+                            return;
+                        }
+                        mRunningQuery = null;
+                        mAdapter.changeCursor(boards);
+                        Log.d(TAG, "Search for \"" + (filter != null ? filter : "") + "\" found "
+                                + boards.getCount() + " boards, query " + queryTime
+                                + "ms, shown after " + (SystemClock.elapsedRealtime()
+                                - requestTime) + "ms");
+                    }
+                });
             }
-        });
+        };
+        mQueryHandler.postDelayed(mPendingQuery, delay);
     }
 
     /**
@@ -324,57 +395,154 @@ public class BoardListActivity extends Activity implements SearchView.OnQueryTex
         }
 
         /**
-         * Loads all the information from the boards index and returns the HTML doc.
+         * Streams the boards index into the database in a single import. If the list can not
+         * be read completely the boards already in the database are kept.
          *
          * @param params nothing
-         * @return The HTML doc of the boards lists.
+         * @return nothing
          */
         @Override
         protected Void doInBackground(Void... params) {
-            JSONObject boardPage = null;
             String url = "http://8chan.co/boards.json";
+            SharedPreferences preferences =
+                    PreferenceManager.getDefaultSharedPreferences(BoardListActivity.this);
+
+            // Validators only mean something while the boards they came with are stored
+            String eTag = null, lastModified = null;
+            if (!list_db.isEmpty()) {
+                eTag = preferences.getString(PREF_BOARD_LIST_ETAG, null);
+                lastModified = preferences.getString(PREF_BOARD_LIST_LAST_MODIFIED, null);
+            }
 
-            HttpClient client = new DefaultHttpClient();
-            HttpGet request = new HttpGet(url);
             try {
-                HttpResponse response = client.execute(request);
-
-                InputStream in = response.getEntity().getContent();
-                BufferedReader reader = new BufferedReader(new InputStreamReader(in));
-                StringBuilder str = new StringBuilder();
-                String line;
-                while((line = reader.readLine()) != null)
-                {
-                    str.append(line);
-                }
-                in.close();
+                HttpLoader.Response response = HttpLoader.get(url, eTag, lastModified);
+                try {
+                    // The database already holds an unchanged list, so it is not touched
+                    if (response.isNotModified()) {
+                        Log.d(TAG, "Board list unchanged");
+                        return null;
+                    }
 
-                boardPage = new JSONObject(str.toString());
+                    long startTime = SystemClock.elapsedRealtime();
+                    BoardListDatabase.BoardImport boardImport = list_db.beginImport();
+                    try {
+                        readBoards(new JsonReader(new InputStreamReader(response.getContent(),
+                                "UTF-8")), boardImport);
+                        boardImport.setSuccessful();
+                    } finally {
+                        boardImport.finish();
+                    }
+                    Log.d(TAG, "Imported " + boardImport.getCount() + " boards, "
+                            + boardImport.getWrittenCount() + " changed, in "
+                            + (SystemClock.elapsedRealtime() - startTime) + "ms");
+
+                    preferences.edit()
+                            .putString(PREF_BOARD_LIST_ETAG, response.getETag())
+                            .putString(PREF_BOARD_LIST_LAST_MODIFIED, response.getLastModified())
+                            .apply();
+                } finally {
+                    response.close();
+                }
             } catch (IOException e) {
                 e.printStackTrace();
-            } catch (JSONException e) {
+            } catch (IllegalStateException e) {
+                // The list was not in the expected shape, the old one is kept
                 e.printStackTrace();
             }
+            return null;
+        }
 
-            if (boardPage != null) {
-                // Looks through all the boards
-                for (int i = 0; i < boardPage.length(); i++) {
-                    try {
-                        JSONObject board = boardPage.getJSONObject(Integer.toString(i));
-                        list_db.insertBoard(board.getString(boardTitle),
-                                "",
-                                board.getString(boardURI),
-                                board.getString(boardPostsPerHour),
-                                board.getString(boardTotalPosts),
-                                board.getString(boardUniqueIps),
-                                board.getString(boardCreationDate)
-                        );
-                    } catch (JSONException e) {
-                        e.printStackTrace();
+        /**
+         * Reads the board list one board at a time into the import. The boards come either as
+         * an array or as an object keyed by their index.
+         *
+         * @param reader Reader of the board list, closed when reading is finished.
+         * @param boardImport The import the boards are added to.
+         * @throws IOException If the stream fails or the JSON is malformed.
+         */
+        private void readBoards(JsonReader reader, BoardListDatabase.BoardImport boardImport)
+                throws IOException {
+            try {
+                if (reader.peek() == JsonToken.BEGIN_ARRAY) {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        readBoard(reader, boardImport);
+                    }
+                    reader.endArray();
+                } else {
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        reader.nextName();
+                        readBoard(reader, boardImport);
                     }
+                    reader.endObject();
+                }
+            } finally {
+                reader.close();
+            }
+        }
+
+        /**
+         * Reads a single board object and adds it to the import.
+         *
+         * @param reader Reader positioned at the board object.
+         * @param boardImport The import the board is added to.
+         * @throws IOException If the stream fails or the JSON is malformed.
+         */
+        private void readBoard(JsonReader reader, BoardListDatabase.BoardImport boardImport)
+                throws IOException {
+            String uri = null, title = "", subtitle = "", created = "";
+            long postsPerHour = 0, totalPosts = 0, uniqueIps = 0;
+
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String field = reader.nextName();
+                if (reader.peek() == JsonToken.NULL) {
+                    reader.skipValue();
+                } else if (field.equals(boardURI)) {
+                    uri = reader.nextString();
+                } else if (field.equals(boardTitle)) {
+                    title = reader.nextString();
+                } else if (field.equals(boardSubtitle)) {
+                    subtitle = reader.nextString();
+                } else if (field.equals(boardPostsPerHour)) {
+                    postsPerHour = readCount(reader);
+                } else if (field.equals(boardTotalPosts)) {
+                    totalPosts = readCount(reader);
+                } else if (field.equals(boardUniqueIps)) {
+                    uniqueIps = readCount(reader);
+                } else if (field.equals(boardCreationDate)) {
+                    created = reader.nextString();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+
+            if (uri != null) {
+                boardImport.addBoard(title, subtitle, "", uri, postsPerHour, totalPosts,
+                        uniqueIps, created);
+            }
+        }
+
+        /**
+         * Reads a count which the list may send as a number or a string.
+         *
+         * @param reader Reader positioned at the count.
+         * @return The count, or 0 if it is not a number.
+         * @throws IOException If the stream fails or the JSON is malformed.
+         */
+        private long readCount(JsonReader reader) throws IOException {
+            String value = reader.nextString();
+            try {
+                return Long.parseLong(value);
+            } catch (NumberFormatException e) {
+                try {
+                    return Math.round(Double.parseDouble(value));
+                } catch (NumberFormatException notANumber) {
+                    return 0;
                 }
             }
-            return null;
         }
 
         /**
@@ -387,7 +555,7 @@ public class BoardListActivity extends Activity implements SearchView.OnQueryTex
         protected void onPostExecute(Void result) {
             mBoardList.setVisibility(View.VISIBLE);
             mProgress.setVisibility(View.GONE);
-            updateDatabaseView();
+            updateDatabaseView(0);
         }
     }
 
@@ -433,7 +601,7 @@ public class BoardListActivity extends Activity implements SearchView.OnQueryTex
                 }
             }
             if (mDBSortBy != null && mDBOrderBy != null) {
-                updateDatabaseView();
+                updateDatabaseView(0);
             }
         }
 
@@ -24,8 +24,15 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
+import android.os.CancellationSignal;
 import android.util.Log;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * A database to store boards on 8chan.
@@ -34,7 +41,7 @@ import android.util.Log;
  * Created by Matt on 10/12/2014.
  */
 public class BoardListDatabase extends SQLiteOpenHelper  {
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = 4;
     private static final String DATABASE_NAME = "BoardList.db";
 
     // Query to create the table.
@@ -48,16 +55,62 @@ public class BoardListDatabase extends SQLiteOpenHelper  {
             DatabaseDef.Boards.UNIQUE_IPS + " INTEGER," +
             DatabaseDef.Boards.DATE_CREATED + " TEXT," +
             DatabaseDef.Boards.FAVORITED + " INTEGER DEFAULT 0," +
-            DatabaseDef.Boards.BOARD_NAME + " TEXT" +
+            DatabaseDef.Boards.BOARD_NAME + " TEXT," +
+            DatabaseDef.Boards.ROW_HASH + " INTEGER DEFAULT 0" +
             " )";
 
-    // Query to delete all the entries.
-    private static final String SQL_DELETE_ENTRIES =
-            "DROP TABLE IF EXISTS " + DatabaseDef.Boards.TABLE_NAME;
+    // Columns the board list can be sorted on, each gets an index.
+    private static final String[] SORTABLE_COLUMNS = {
+            DatabaseDef.Boards.UNIQUE_IPS,
+            DatabaseDef.Boards.POSTS_LAST_HOUR,
+            DatabaseDef.Boards.TOTAL_POSTS,
+            DatabaseDef.Boards.FAVORITED,
+            DatabaseDef.Boards.NATIONALITY,
+            DatabaseDef.Boards.DATE_CREATED
+    };
+
+    // Columns holding counts, which older versions could store as text.
+    private static final String[] COUNT_COLUMNS = {
+            DatabaseDef.Boards.UNIQUE_IPS,
+            DatabaseDef.Boards.POSTS_LAST_HOUR,
+            DatabaseDef.Boards.TOTAL_POSTS
+    };
+
+    // Query to create the full text index of the boards.
+    private static final String SQL_CREATE_SEARCH = "CREATE VIRTUAL TABLE " +
+            DatabaseDef.BoardSearch.TABLE_NAME + " USING fts4(" +
+            DatabaseDef.BoardSearch.BOARD_LINK + ", " +
+            DatabaseDef.BoardSearch.BOARD_NAME + ", " +
+            DatabaseDef.BoardSearch.SUBTITLE +
+            ")";
+
+    // Query to fill the full text index from the boards already stored.
+    private static final String SQL_FILL_SEARCH = "INSERT INTO " +
+            DatabaseDef.BoardSearch.TABLE_NAME + " (" +
+            DatabaseDef.BoardSearch.DOC_ID + ", " +
+            DatabaseDef.BoardSearch.BOARD_LINK + ", " +
+            DatabaseDef.BoardSearch.BOARD_NAME + ") SELECT " +
+            DatabaseDef.Boards.BOARD_ID + ", " +
+            DatabaseDef.Boards.BOARD_LINK + ", " +
+            DatabaseDef.Boards.BOARD_NAME + " FROM " +
+            DatabaseDef.Boards.TABLE_NAME;
+
+    // Selects the boards matching a full text query.
+    private static final String SQL_SELECT_MATCHING_BOARDS = DatabaseDef.Boards.BOARD_ID +
+            " IN (SELECT " + DatabaseDef.BoardSearch.DOC_ID + " FROM " +
+            DatabaseDef.BoardSearch.TABLE_NAME + " WHERE " +
+            DatabaseDef.BoardSearch.TABLE_NAME + " MATCH ?)";
+
+    // Ranks boards whose link is the search term first, then ones whose link starts with it.
+    private static final String SQL_RANK_MATCHING_BOARDS = "CASE WHEN " +
+            DatabaseDef.Boards.BOARD_LINK + " = ? THEN 0 WHEN " +
+            DatabaseDef.Boards.BOARD_LINK + " LIKE ? THEN 1 ELSE 2 END";
 
     // Query to get all the boards that have been favorited.
     private static final String SQL_SELECT_FAVORITED_BOARDS = DatabaseDef.Boards.FAVORITED + ">0";
 
+    private final Context mContext;
+
     /**
      * Constructor to set up the database for the caller.
      *
@@ -65,6 +118,7 @@ public class BoardListDatabase extends SQLiteOpenHelper  {
      */
     public BoardListDatabase(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        mContext = context;
     }
 
     /**
@@ -75,11 +129,13 @@ public class BoardListDatabase extends SQLiteOpenHelper  {
     @Override
     public void onCreate(SQLiteDatabase database) {
         database.execSQL(SQL_CREATE_ENTRIES);
+        database.execSQL(SQL_CREATE_SEARCH);
+        createSortIndices(database);
     }
 
     /**
-     * Whenever the database is being updated to a new version, the tables is cleared out and
-     * remade with the new database version.
+     * Brings an older database up to the current version one step at a time, keeping the boards
+     * and the user's favorites.
      *
      * @param db The database being upgraded.
      * @param oldVersion The version the current database is.
@@ -88,46 +144,274 @@ public class BoardListDatabase extends SQLiteOpenHelper  {
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
         Log.w(BoardListDatabase.class.getName(),
-                "Upgrading database from version " + oldVersion + " to "
-                        + newVersion + ", which will destroy all old data");
-        db.execSQL(SQL_DELETE_ENTRIES);
-        onCreate(db);
+                "Upgrading database from version " + oldVersion + " to " + newVersion);
+        if (oldVersion < 2) {
+            db.execSQL(SQL_CREATE_SEARCH);
+            db.execSQL(SQL_FILL_SEARCH);
+        }
+        if (oldVersion < 3) {
+            // Counts that were stored as text sort as text, so they are turned into numbers.
+            for (String column : COUNT_COLUMNS) {
+                db.execSQL("UPDATE " + DatabaseDef.Boards.TABLE_NAME + " SET " + column +
+                        " = CAST(" + column + " AS INTEGER) WHERE typeof(" + column +
+                        ") != 'integer'");
+            }
+            createSortIndices(db);
+        }
+        if (oldVersion < 4) {
+            // Boards start without a hash, so the next import writes each of them once.
+            db.execSQL("ALTER TABLE " + DatabaseDef.Boards.TABLE_NAME + " ADD COLUMN " +
+                    DatabaseDef.Boards.ROW_HASH + " INTEGER DEFAULT 0");
+        }
+    }
+
+    /**
+     * Creates an index on every column the board list can be sorted on, so sorting reads the
+     * index instead of sorting the whole table.
+     *
+     * @param db The database to create the indices in.
+     */
+    private static void createSortIndices(SQLiteDatabase db) {
+        for (String column : SORTABLE_COLUMNS) {
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + DatabaseDef.Boards.TABLE_NAME + "_" +
+                    column + "_idx ON " + DatabaseDef.Boards.TABLE_NAME + " (" + column + ")");
+        }
     }
 
     /**
-     * Inserts a board into the database as defined by the information being sent in.
+     * Starts importing a fresh copy of the board list. All boards added to the import are
+     * written in a single transaction, which {@link BoardImport#finish()} commits if the import
+     * was marked successful.
      *
-     * @param boardName Name of the board.
-     * @param nation Nationality of the board.
-     * @param boardlink Link to the board. EG /v/
-     * @param postsLastHour Posts per hour as last updated.
-     * @param totalPosts Total posts to board as last updated.
-     * @param uniqueIps Unique IPs visiting the board as last updated.
-     * @param dateCreated Date the board was created.
+     * @return The import to add the boards to.
      */
-    public void insertBoard(String boardName, String nation, String boardlink, String postsLastHour,
-                            String totalPosts, String uniqueIps, String dateCreated) {
-        // Gets the data repository in write mode
-        SQLiteDatabase db = getWritableDatabase();
-
-        int boardId = boardlink.hashCode();
-        String cleanedName = boardName.replace("'", "''");
-
-        String UPSERT = "INSERT OR REPLACE INTO " + DatabaseDef.Boards.TABLE_NAME + " (" +
-                DatabaseDef.Boards.BOARD_ID + ", " + DatabaseDef.Boards.BOARD_LINK + ", " +
-                DatabaseDef.Boards.BOARD_NAME + ", " + DatabaseDef.Boards.NATIONALITY + ", " +
-                DatabaseDef.Boards.POSTS_LAST_HOUR + ", " + DatabaseDef.Boards.TOTAL_POSTS + ", " +
-                DatabaseDef.Boards.UNIQUE_IPS + ", " + DatabaseDef.Boards.DATE_CREATED + ", " +
-                DatabaseDef.Boards.FAVORITED + ") " +
-                "VALUES ( " + boardId + ", '" + boardlink + "', '" + cleanedName + "', '" +
-                nation +  "', '" + postsLastHour + "', '" + totalPosts + "', '" +
-                uniqueIps + "', '" + dateCreated + "', " +
-                "(SELECT " + DatabaseDef.Boards.FAVORITED + " FROM " +
-                DatabaseDef.Boards.TABLE_NAME + " WHERE " + DatabaseDef.Boards.BOARD_ID + " = " +
-                boardId + "));";
-
-        db.execSQL(UPSERT);
+    public BoardImport beginImport() {
+        return new BoardImport(getWritableDatabase());
+    }
+
+    /**
+     * Writes boards into the database through statements compiled once for the whole import.
+     * Existing boards are updated in place so the user's favorites are kept, and only boards
+     * that are not in the database yet are inserted. The full text index is kept in step with
+     * the boards.
+     */
+    public static class BoardImport {
+        private static final String SQL_UPDATE_BOARD = "UPDATE " +
+                DatabaseDef.Boards.TABLE_NAME + " SET " +
+                DatabaseDef.Boards.BOARD_LINK + "=?, " +
+                DatabaseDef.Boards.BOARD_NAME + "=?, " +
+                DatabaseDef.Boards.NATIONALITY + "=?, " +
+                DatabaseDef.Boards.POSTS_LAST_HOUR + "=?, " +
+                DatabaseDef.Boards.TOTAL_POSTS + "=?, " +
+                DatabaseDef.Boards.UNIQUE_IPS + "=?, " +
+                DatabaseDef.Boards.DATE_CREATED + "=?, " +
+                DatabaseDef.Boards.ROW_HASH + "=? WHERE " +
+                DatabaseDef.Boards.BOARD_ID + "=?";
+
+        private static final String SQL_INSERT_BOARD = "INSERT INTO " +
+                DatabaseDef.Boards.TABLE_NAME + " (" +
+                DatabaseDef.Boards.BOARD_LINK + ", " +
+                DatabaseDef.Boards.BOARD_NAME + ", " +
+                DatabaseDef.Boards.NATIONALITY + ", " +
+                DatabaseDef.Boards.POSTS_LAST_HOUR + ", " +
+                DatabaseDef.Boards.TOTAL_POSTS + ", " +
+                DatabaseDef.Boards.UNIQUE_IPS + ", " +
+                DatabaseDef.Boards.DATE_CREATED + ", " +
+                DatabaseDef.Boards.ROW_HASH + ", " +
+                DatabaseDef.Boards.BOARD_ID + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+        private static final String SQL_UPDATE_SEARCH = "UPDATE " +
+                DatabaseDef.BoardSearch.TABLE_NAME + " SET " +
+                DatabaseDef.BoardSearch.BOARD_LINK + "=?, " +
+                DatabaseDef.BoardSearch.BOARD_NAME + "=?, " +
+                DatabaseDef.BoardSearch.SUBTITLE + "=? WHERE " +
+                DatabaseDef.BoardSearch.DOC_ID + "=?";
+
+        private static final String SQL_INSERT_SEARCH = "INSERT INTO " +
+                DatabaseDef.BoardSearch.TABLE_NAME + " (" +
+                DatabaseDef.BoardSearch.BOARD_LINK + ", " +
+                DatabaseDef.BoardSearch.BOARD_NAME + ", " +
+                DatabaseDef.BoardSearch.SUBTITLE + ", " +
+                DatabaseDef.BoardSearch.DOC_ID + ") VALUES (?, ?, ?, ?)";
+
+        private final SQLiteDatabase mDatabase;
+        private final SQLiteStatement mUpdate;
+        private final SQLiteStatement mInsert;
+        private final SQLiteStatement mUpdateSearch;
+        private final SQLiteStatement mInsertSearch;
+        private final Map<Long, Integer> mRowHashes = new HashMap<Long, Integer>();
+        private int mCount = 0;
+        private int mWritten = 0;
+
+        /**
+         * Starts the transaction, reads what every stored board looked like when it was last
+         * written and compiles the statements.
+         *
+         * @param database The database being imported into.
+         */
+        private BoardImport(SQLiteDatabase database) {
+            mDatabase = database;
+            mDatabase.beginTransaction();
+
+            Cursor cursor = mDatabase.query(DatabaseDef.Boards.TABLE_NAME, new String[] {
+                    DatabaseDef.Boards.BOARD_ID, DatabaseDef.Boards.ROW_HASH },
+                    null, null, null, null, null);
+            try {
+                while (cursor.moveToNext()) {
+                    mRowHashes.put(cursor.getLong(0), cursor.getInt(1));
+                }
+            } finally {
+                cursor.close();
+            }
+
+            mUpdate = mDatabase.compileStatement(SQL_UPDATE_BOARD);
+            mInsert = mDatabase.compileStatement(SQL_INSERT_BOARD);
+            mUpdateSearch = mDatabase.compileStatement(SQL_UPDATE_SEARCH);
+            mInsertSearch = mDatabase.compileStatement(SQL_INSERT_SEARCH);
+        }
+
+        /**
+         * Adds a board to the import. Boards that are already in the database are only written
+         * if they changed since they were last written.
+         *
+         * @param boardName Name of the board.
+         * @param subtitle Subtitle of the board, only kept for searching.
+         * @param nation Nationality of the board.
+         * @param boardLink Link to the board. EG /v/
+         * @param postsLastHour Posts per hour as last updated.
+         * @param totalPosts Total posts to board as last updated.
+         * @param uniqueIps Unique IPs visiting the board as last updated.
+         * @param dateCreated Date the board was created.
+         */
+        public void addBoard(String boardName, String subtitle, String nation, String boardLink,
+                             long postsLastHour, long totalPosts, long uniqueIps,
+                             String dateCreated) {
+            mCount++;
+            long boardId = boardLink.hashCode();
+            int rowHash = getRowHash(boardName, subtitle, nation, boardLink, postsLastHour,
+                    totalPosts, uniqueIps, dateCreated);
+            Integer knownHash = mRowHashes.get(boardId);
+            if (knownHash != null && knownHash == rowHash) {
+                return;
+            }
+
+            boolean exists = knownHash != null;
+            SQLiteStatement board = exists ? mUpdate : mInsert;
+            bindBoard(board, boardName, nation, boardLink, postsLastHour, totalPosts,
+                    uniqueIps, dateCreated, rowHash);
+            if (exists) {
+                board.executeUpdateDelete();
+            } else {
+                board.executeInsert();
+            }
+
+            SQLiteStatement search = exists ? mUpdateSearch : mInsertSearch;
+            search.bindString(1, boardLink);
+            search.bindString(2, boardName);
+            search.bindString(3, subtitle);
+            search.bindLong(4, boardId);
+            if (exists) {
+                search.executeUpdateDelete();
+            } else {
+                search.executeInsert();
+            }
+
+            mRowHashes.put(boardId, rowHash);
+            mWritten++;
+        }
+
+        /**
+         * Gets how many boards were added so far.
+         *
+         * @return The number of boards.
+         */
+        public int getCount() {
+            return mCount;
+        }
+
+        /**
+         * Gets how many of the added boards were new or changed and had to be written.
+         *
+         * @return The number of boards written.
+         */
+        public int getWrittenCount() {
+            return mWritten;
+        }
+
+        /**
+         * Commits every board added to the import.
+         */
+        public void setSuccessful() {
+            mDatabase.setTransactionSuccessful();
+        }
+
+        /**
+         * Ends the import, writing the boards if it was marked successful and throwing them
+         * away otherwise.
+         */
+        public void finish() {
+            mUpdate.close();
+            mInsert.close();
+            mUpdateSearch.close();
+            mInsertSearch.close();
+            mDatabase.endTransaction();
+        }
 
+        /**
+         * Binds a board to one of the statements. Both take the values in the same order.
+         *
+         * @param statement The update or insert statement.
+         * @param boardName Name of the board.
+         * @param nation Nationality of the board.
+         * @param boardLink Link to the board. EG /v/
+         * @param postsLastHour Posts per hour as last updated.
+         * @param totalPosts Total posts to board as last updated.
+         * @param uniqueIps Unique IPs visiting the board as last updated.
+         * @param dateCreated Date the board was created.
+         * @param rowHash Hash of everything stored about the board.
+         */
+        private static void bindBoard(SQLiteStatement statement, String boardName, String nation,
+                                      String boardLink, long postsLastHour, long totalPosts,
+                                      long uniqueIps, String dateCreated, int rowHash) {
+            statement.bindString(1, boardLink);
+            statement.bindString(2, boardName);
+            statement.bindString(3, nation);
+            statement.bindLong(4, postsLastHour);
+            statement.bindLong(5, totalPosts);
+            statement.bindLong(6, uniqueIps);
+            statement.bindString(7, dateCreated);
+            statement.bindLong(8, rowHash);
+            statement.bindLong(9, boardLink.hashCode());
+        }
+
+        /**
+         * Hashes everything stored about a board, so a board that did not change since it was
+         * last written can be skipped.
+         *
+         * @param boardName Name of the board.
+         * @param subtitle Subtitle of the board.
+         * @param nation Nationality of the board.
+         * @param boardLink Link to the board. EG /v/
+         * @param postsLastHour Posts per hour as last updated.
+         * @param totalPosts Total posts to board as last updated.
+         * @param uniqueIps Unique IPs visiting the board as last updated.
+         * @param dateCreated Date the board was created.
+         * @return The hash of the board.
+         */
+        private static int getRowHash(String boardName, String subtitle, String nation,
+                                      String boardLink, long postsLastHour, long totalPosts,
+                                      long uniqueIps, String dateCreated) {
+            int hash = boardName.hashCode();
+            hash = 31 * hash + subtitle.hashCode();
+            hash = 31 * hash + nation.hashCode();
+            hash = 31 * hash + boardLink.hashCode();
+            hash = 31 * hash + (int) (postsLastHour ^ (postsLastHour >>> 32));
+            hash = 31 * hash + (int) (totalPosts ^ (totalPosts >>> 32));
+            hash = 31 * hash + (int) (uniqueIps ^ (uniqueIps >>> 32));
+            hash = 31 * hash + dateCreated.hashCode();
+            // 0 is what boards stored before the hash was kept start with
+            return hash != 0 ? hash : 1;
+        }
     }
 
     /**
@@ -171,19 +455,21 @@ public class BoardListDatabase extends SQLiteOpenHelper  {
 
     /**
      * Searches through the database for boards that match a pattern and sorts the boards
-     * depending on variables set by users.
+     * depending on variables set by users. Every word of the search matches the start of a
+     * word in a board's link, name or subtitle through the full text index. Boards whose link
+     * is the first word of the search come first, then ones whose link starts with it.
      *
-     * @param search What you are searching for by board link or name.
+     * @param search What you are searching for by board link, name or subtitle.
      * @param sortBy The value you are sorting on.
      * @param order The order to be sort. EG ASC or DESC
+     * @param signal Cancels the query if it is no longer needed, or null.
      * @return The cursor to query.
      */
-    public Cursor getSortedSearch(CharSequence search, String sortBy, String order) {
+    public Cursor getSortedSearch(CharSequence search, String sortBy, String order,
+                                  CancellationSignal signal) {
         SQLiteDatabase db = getReadableDatabase();
-        String selection;
-        String select;
         String[] projection;
-        String sortOrder;
+        String sortOrder = sortBy + " " + order;
 
         projection = new String[] {
                 DatabaseDef.Boards.BOARD_ID,
@@ -194,26 +480,61 @@ public class BoardListDatabase extends SQLiteOpenHelper  {
                 sortBy
         };
 
-        if(search == null || search.toString().trim().equals("")){
-            selection = null;
-        } else {
-            select = "'%" + search.toString() + "%'";
+        List<String> terms = getSearchTerms(search);
+        if(terms.isEmpty()) {
+            return db.query(
+                    false,                      // Keep duplicate rows
+                    DatabaseDef.Boards.TABLE_NAME,       // The table to query
+                    projection,                 // The columns to return
+                    null,                       // The columns for the WHERE clause
+                    null,                       // The values for the WHERE clause
+                    null,                       // don't group the rows
+                    null,                       // don't filter by drawer_item groups
+                    sortOrder,                  // The sort order
+                    null,                       // Return every row
+                    signal                      // Cancels the query
+            );
+        }
 
-            selection = DatabaseDef.Boards.BOARD_LINK + " LIKE " + select + " OR " +
-                    DatabaseDef.Boards.BOARD_NAME + " LIKE " + select;
+        StringBuilder match = new StringBuilder();
+        for(String term : terms) {
+            if(match.length() > 0) {
+                match.append(' ');
+            }
+            match.append(term).append('*');
         }
 
-        sortOrder = sortBy + " " + order;
+        String sql = SQLiteQueryBuilder.buildQueryString(false, DatabaseDef.Boards.TABLE_NAME,
+                projection, SQL_SELECT_MATCHING_BOARDS, null, null,
+                SQL_RANK_MATCHING_BOARDS + ", " + sortOrder, null);
+        String first = terms.get(0);
+        return db.rawQuery(sql, new String[] { match.toString(), first, first + "%" }, signal);
+    }
 
-        return db.query(
-                DatabaseDef.Boards.TABLE_NAME,       // The table to query
-                projection,                 // The columns to return
-                selection,                  // The columns for the WHERE clause
-                null,              // The values for the WHERE clause
-                null,                       // don't group the rows
-                null,                       // don't filter by drawer_item groups
-                sortOrder                   // The sort order
-        );
+    /**
+     * Splits a search into the words the full text index can match, dropping anything that
+     * would be read as query syntax.
+     *
+     * @param search What the user typed.
+     * @return The words of the search in lower case.
+     */
+    private static List<String> getSearchTerms(CharSequence search) {
+        List<String> terms = new ArrayList<String>();
+        if(search == null) {
+            return terms;
+        }
+
+        StringBuilder term = new StringBuilder();
+        for(int i = 0; i <= search.length(); i++) {
+            char c = i < search.length() ? search.charAt(i) : ' ';
+            if(Character.isLetterOrDigit(c)) {
+                term.append(Character.toLowerCase(c));
+            } else if(term.length() > 0) {
+                terms.add(term.toString());
+                term.setLength(0);
+            }
+        }
+        return terms;
     }
 
     /**
@@ -235,5 +556,8 @@ public class BoardListDatabase extends SQLiteOpenHelper  {
         String[] selectionArgs = { boardLink };
 
         db.update(DatabaseDef.Boards.TABLE_NAME, values, selection, selectionArgs);
+
+        // The favorites kept in memory are updated along with the database
+        FavoritesStore.getInstance(mContext).onFavoriteChanged(boardLink, follow);
     }
 }
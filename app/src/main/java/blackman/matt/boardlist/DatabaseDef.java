@@ -47,5 +47,23 @@ public class DatabaseDef {
         public static final String UNIQUE_IPS = "uniqueips";
         public static final String DATE_CREATED = "datecreated";
         public static final String FAVORITED = "favorited"; // 1 means favorited 0 means no
+        public static final String ROW_HASH = "rowhash"; // Hash of the board when last written
+    }
+
+    /**
+     * Full text index over the boards, each row shares its docid with the board's id.
+     */
+    public static final class BoardSearch {
+        /**
+         * Empty constructor.
+         */
+        private BoardSearch(){
+        }
+
+        public static final String TABLE_NAME = "boards_fts";
+        public static final String DOC_ID = "docid";
+        public static final String BOARD_LINK = "boardlink";
+        public static final String BOARD_NAME = "boardname";
+        public static final String SUBTITLE = "subtitle";
     }
 }
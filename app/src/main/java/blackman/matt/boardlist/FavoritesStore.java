@@ -0,0 +1,234 @@
+/*
+ * Infinity Browser 2014  Matt Blackman
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package blackman.matt.boardlist;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the links of the boards the user has favorited in memory, so the drawer and startup do
+ * not have to query the database on the UI thread. The favorites are read from the database
+ * once on a background thread, and every change written by
+ * {@link BoardListDatabase#favoriteBoard(String, Boolean)} is passed through to the store.
+ * Listeners are told about the favorites on the UI thread once they are loaded and after
+ * every change.
+ */
+public class FavoritesStore {
+    private static final String TAG = "FavoritesStore";
+
+    private static FavoritesStore sInstance;
+
+    private final Context mContext;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final List<OnFavoritesChangedListener> mListeners =
+            new ArrayList<OnFavoritesChangedListener>();
+    // Sorted by link, null until the favorites are loaded
+    private List<String> mFavorites;
+    // Changes made while the favorites were loading, applied once they are loaded
+    private final Map<String, Boolean> mEarlyChanges = new LinkedHashMap<String, Boolean>();
+    private boolean mLoading = false;
+
+    /**
+     * Called with the favorited boards once they are loaded and whenever they change.
+     */
+    public interface OnFavoritesChangedListener {
+        /**
+         * Called on the UI thread.
+         *
+         * @param favorites Links of the favorited boards sorted by link.
+         */
+        public void onFavoritesChanged(List<String> favorites);
+    }
+
+    /**
+     * Gets the store, creating it the first time.
+     *
+     * @param context Context of the caller.
+     * @return The favorites store.
+     */
+    public static synchronized FavoritesStore getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new FavoritesStore(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Sets up the store.
+     *
+     * @param context The application context.
+     */
+    private FavoritesStore(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Starts loading the favorites in the background if they are not loaded yet.
+     */
+    public synchronized void load() {
+        if (mFavorites != null || mLoading) {
+            return;
+        }
+        mLoading = true;
+
+        new Thread() {
+            public void run() {
+                long startTime = SystemClock.elapsedRealtime();
+                List<String> favorites = new ArrayList<String>();
+                BoardListDatabase database = new BoardListDatabase(mContext);
+                try {
+                    Cursor cursor = database.getFavoritedBoards();
+                    try {
+                        int linkColumn = cursor.getColumnIndex(DatabaseDef.Boards.BOARD_LINK);
+                        while (cursor.moveToNext()) {
+                            favorites.add(cursor.getString(linkColumn));
+                        }
+                    } finally {
+                        cursor.close();
+                    }
+                    Collections.sort(favorites);
+                    Log.d(TAG, favorites.size() + " favorites loaded in "
+                            + (SystemClock.elapsedRealtime() - startTime) + "ms");
+                } catch (RuntimeException e) {
+                    // Such as the database failing to open or upgrade. Carried on with no
+                    // favorites so the listeners still hear back.
+                    e.printStackTrace();
+                    favorites.clear();
+                } finally {
+                    database.close();
+                    synchronized (FavoritesStore.this) {
+                        mFavorites = favorites;
+                        mLoading = false;
+                        for (Map.Entry<String, Boolean> change : mEarlyChanges.entrySet()) {
+                            apply(change.getKey(), change.getValue());
+                        }
+                        mEarlyChanges.clear();
+                    }
+                }
+                notifyListeners();
+            }
+        }.start();
+    }
+
+    /**
+     * Gets the favorited boards if they are loaded.
+     *
+     * @return Links of the favorited boards sorted by link, or null if they are not loaded yet.
+     */
+    public synchronized List<String> getFavorites() {
+        return mFavorites != null ? new ArrayList<String>(mFavorites) : null;
+    }
+
+    /**
+     * Adds a listener and loads the favorites if they are not loaded yet. If they are, the
+     * listener is called with them right away.
+     *
+     * @param listener The listener to add. Must be called on the UI thread.
+     */
+    public void addListener(OnFavoritesChangedListener listener) {
+        List<String> favorites;
+        synchronized (this) {
+            mListeners.add(listener);
+            favorites = getFavorites();
+        }
+        if (favorites != null) {
+            listener.onFavoritesChanged(favorites);
+        } else {
+            load();
+        }
+    }
+
+    /**
+     * Removes a listener.
+     *
+     * @param listener The listener to remove.
+     */
+    public synchronized void removeListener(OnFavoritesChangedListener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Passes a change that was written to the database through to the favorites in memory.
+     * Can be called from any thread.
+     *
+     * @param boardLink The board that changed.
+     * @param favorite If the board is favorited now.
+     */
+    void onFavoriteChanged(String boardLink, boolean favorite) {
+        synchronized (this) {
+            if (mFavorites == null) {
+                mEarlyChanges.put(boardLink, favorite);
+                return;
+            }
+            if (!apply(boardLink, favorite)) {
+                return;
+            }
+        }
+        notifyListeners();
+    }
+
+    /**
+     * Adds or removes a board from the favorites, keeping them sorted.
+     *
+     * @param boardLink The board that changed.
+     * @param favorite If the board is favorited now.
+     * @return If the favorites changed.
+     */
+    private boolean apply(String boardLink, boolean favorite) {
+        int index = Collections.binarySearch(mFavorites, boardLink);
+        if (favorite && index < 0) {
+            mFavorites.add(-index - 1, boardLink);
+            return true;
+        } else if (!favorite && index >= 0) {
+            mFavorites.remove(index);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Tells every listener about the current favorites on the UI thread.
+     */
+    private void notifyListeners() {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                List<String> favorites;
+                List<OnFavoritesChangedListener> listeners;
+                synchronized (FavoritesStore.this) {
+                    favorites = getFavorites();
+                    listeners = new ArrayList<OnFavoritesChangedListener>(mListeners);
+                }
+                for (OnFavoritesChangedListener listener : listeners) {
+                    listener.onFavoritesChanged(favorites);
+                }
+            }
+        });
+    }
+}
@@ -4,7 +4,6 @@ import android.content.Context;
 import android.content.Intent;
 import android.graphics.Bitmap;
 import android.graphics.drawable.Drawable;
-import android.text.Html;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -23,6 +22,7 @@ import com.nostra13.universalimageloader.core.listener.SimpleImageLoadingListene
 import java.util.List;
 
 import blackman.matt.board.Post;
+import blackman.matt.board.PostBodyCache;
 import blackman.matt.infinitebrowser.InfinityBrowser;
 import blackman.matt.infinitebrowser.R;
 import blackman.matt.utils.ImageLongPressDialog;
@@ -86,10 +86,7 @@ class CatalogAdapter extends BaseAdapter {
             holder = (ViewHolder) convertView.getTag();
         }
 
-        String numReplies = post.omittedReplies;
-        String numImages = post.omittedImages;
-
-        holder.replies.setText("R: " + numReplies + " / I: " + numImages);
+        holder.replies.setText("R: " + post.omittedReplies + " / I: " + post.omittedImages);
 
         if(post.topic.equals("")) {
             holder.topic.setVisibility(View.GONE);
@@ -98,7 +95,7 @@ class CatalogAdapter extends BaseAdapter {
             holder.topic.setText(post.topic);
         }
 
-        holder.comment.setText(Html.fromHtml(post.postBody));
+        holder.comment.setText(PostBodyCache.getInstance().get(post));
         holder.image.setImageBitmap(null);
 
 
@@ -140,7 +137,7 @@ class CatalogAdapter extends BaseAdapter {
             public void onClick(View v) {
                 Intent intent = new Intent(mContext, InfinityBrowser.class);
                 intent.putExtra(InfinityBrowser.ARG_BOARD, post.rootBoard);
-                intent.putExtra(InfinityBrowser.ARG_THREAD, post.postNo);
+                intent.putExtra(InfinityBrowser.ARG_THREAD, String.valueOf(post.postNo));
                 mContext.startActivity(intent);
             }
         };
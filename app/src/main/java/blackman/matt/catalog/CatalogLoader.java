@@ -20,10 +20,6 @@ package blackman.matt.catalog;
 
 import android.os.AsyncTask;
 
-import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.DefaultHttpClient;
 import org.json.JSONArray;
 import org.json.JSONException;
 
@@ -33,6 +29,8 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.URL;
 
+import blackman.matt.Utils.HttpLoader;
+
 /**
  * Loads a board catalog from a selected board and sends it up to the user.
  *
@@ -78,21 +76,27 @@ class CatalogLoader  extends AsyncTask<URL, Void, JSONArray> {
         JSONArray ochPage = null;
         String pageUrl = urls[0].toString();
 
-        HttpClient client = new DefaultHttpClient();
-        HttpGet request = new HttpGet(pageUrl);
         try {
-            HttpResponse response = client.execute(request);
-
-            InputStream in = response.getEntity().getContent();
-            BufferedReader reader = new BufferedReader(new InputStreamReader(in));
-            StringBuilder str = new StringBuilder();
-            String line;
-            while((line = reader.readLine()) != null)
-            {
-                str.append(line);
+            HttpLoader.Response response = HttpLoader.get(pageUrl);
+            try {
+                if (response.isNotModified()) {
+                    ochPage = response.getCachedResult();
+                } else {
+                    InputStream in = response.getContent();
+                    BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+                    StringBuilder str = new StringBuilder();
+                    String line;
+                    while((line = reader.readLine()) != null)
+                    {
+                        str.append(line);
+                    }
+                    in.close();
+                    ochPage = new JSONArray(str.toString());
+                    response.cacheResult(ochPage);
+                }
+            } finally {
+                response.close();
             }
-            in.close();
-            ochPage = new JSONArray(str.toString());
         } catch (IOException e) {
             e.printStackTrace();
         } catch (JSONException e) {
@@ -0,0 +1,65 @@
+/*
+ * Infinity Browser 2014  Matt Blackman
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package blackman.matt.download;
+
+import android.provider.BaseColumns;
+
+/**
+ * Defines the columns of the databases to hold the queued and saved media in.
+ */
+public class DatabaseDef {
+
+    /**
+     * Column definition.
+     */
+    public static final class Downloads implements BaseColumns {
+        /**
+         * Empty constructor.
+         */
+        private Downloads(){
+        }
+
+        public static final String TABLE_NAME = "downloads";
+        public static final String DOWNLOAD_ID = "_id";
+        public static final String URL = "url";
+        public static final String FILE_NAME = "filename";
+        public static final String BOARD_LINK = "boardlink";
+        public static final String THREAD_NO = "threadno";
+        public static final String MD5 = "md5";
+        public static final String TIM = "tim";
+    }
+
+    /**
+     * Column definition.
+     */
+    public static final class SavedMedia implements BaseColumns {
+        /**
+         * Empty constructor.
+         */
+        private SavedMedia(){
+        }
+
+        public static final String TABLE_NAME = "savedmedia";
+        public static final String MEDIA_ID = "_id";
+        public static final String MD5 = "md5"; // Base64, as the site gives it
+        public static final String BOARD_LINK = "boardlink";
+        public static final String TIM = "tim";
+        public static final String PATH = "path";
+    }
+}
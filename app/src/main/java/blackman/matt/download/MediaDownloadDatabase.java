@@ -0,0 +1,174 @@
+/*
+ * Infinity Browser 2014  Matt Blackman
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package blackman.matt.download;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A database to store the media downloads that have not finished yet, so they can be picked up
+ * again after the app is closed.
+ */
+public class MediaDownloadDatabase extends SQLiteOpenHelper {
+    private static final int DATABASE_VERSION = 2;
+    private static final String DATABASE_NAME = "MediaDownloads.db";
+
+    // Query to create the table.
+    private static final String SQL_CREATE_ENTRIES = "CREATE TABLE " +
+            DatabaseDef.Downloads.TABLE_NAME + " (" +
+            DatabaseDef.Downloads.DOWNLOAD_ID + " INTEGER PRIMARY KEY," +
+            DatabaseDef.Downloads.URL + " TEXT UNIQUE," +
+            DatabaseDef.Downloads.FILE_NAME + " TEXT," +
+            DatabaseDef.Downloads.BOARD_LINK + " TEXT," +
+            DatabaseDef.Downloads.THREAD_NO + " TEXT," +
+            DatabaseDef.Downloads.MD5 + " TEXT," +
+            DatabaseDef.Downloads.TIM + " TEXT" +
+            " )";
+
+    // Query to delete all the entries.
+    private static final String SQL_DELETE_ENTRIES =
+            "DROP TABLE IF EXISTS " + DatabaseDef.Downloads.TABLE_NAME;
+
+    /**
+     * Constructor to set up the database for the caller.
+     *
+     * @param context Context of the caller
+     */
+    public MediaDownloadDatabase(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    }
+
+    /**
+     * Creates the table when the class is initialized as an object.
+     *
+     * @param database The database being created.
+     */
+    @Override
+    public void onCreate(SQLiteDatabase database) {
+        database.execSQL(SQL_CREATE_ENTRIES);
+    }
+
+    /**
+     * Whenever the database is being updated to a new version, the tables is cleared out and
+     * remade with the new database version.
+     *
+     * @param db The database being upgraded.
+     * @param oldVersion The version the current database is.
+     * @param newVersion The version the database is being updated to.
+     */
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        Log.w(MediaDownloadDatabase.class.getName(),
+                "Upgrading database from version " + oldVersion + " to "
+                        + newVersion + ", which will destroy all old data");
+        db.execSQL(SQL_DELETE_ENTRIES);
+        onCreate(db);
+    }
+
+    /**
+     * Adds downloads to the queue in one transaction. Files that are already queued are left
+     * as they are.
+     *
+     * @param downloads The downloads to add.
+     * @return The downloads that were not already queued.
+     */
+    public List<QueuedDownload> addDownloads(List<QueuedDownload> downloads) {
+        List<QueuedDownload> added = new ArrayList<QueuedDownload>(downloads.size());
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (QueuedDownload download : downloads) {
+                if (db.insertWithOnConflict(DatabaseDef.Downloads.TABLE_NAME, null,
+                        toValues(download), SQLiteDatabase.CONFLICT_IGNORE) != -1) {
+                    added.add(download);
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return added;
+    }
+
+    /**
+     * Takes a download off the queue once it is done.
+     *
+     * @param url Url of the finished download.
+     */
+    public void removeDownload(String url) {
+        getWritableDatabase().delete(DatabaseDef.Downloads.TABLE_NAME,
+                DatabaseDef.Downloads.URL + "=?", new String[] { url });
+    }
+
+    /**
+     * Gets every download still in the queue, oldest first.
+     *
+     * @return The queued downloads.
+     */
+    public List<QueuedDownload> getDownloads() {
+        Cursor cursor = getReadableDatabase().query(DatabaseDef.Downloads.TABLE_NAME, null,
+                null, null, null, null, DatabaseDef.Downloads.DOWNLOAD_ID + " ASC");
+        List<QueuedDownload> downloads = new ArrayList<QueuedDownload>(cursor.getCount());
+        while (cursor.moveToNext()) {
+            downloads.add(fromCursor(cursor));
+        }
+        cursor.close();
+        return downloads;
+    }
+
+    /**
+     * Turns a download into the values of its row.
+     *
+     * @param download The download.
+     * @return The values of the download's row.
+     */
+    private static ContentValues toValues(QueuedDownload download) {
+        ContentValues values = new ContentValues();
+        values.put(DatabaseDef.Downloads.URL, download.url);
+        values.put(DatabaseDef.Downloads.FILE_NAME, download.fileName);
+        values.put(DatabaseDef.Downloads.BOARD_LINK, download.boardRoot);
+        values.put(DatabaseDef.Downloads.THREAD_NO, download.threadNo);
+        values.put(DatabaseDef.Downloads.MD5, download.md5);
+        values.put(DatabaseDef.Downloads.TIM, download.tim);
+        return values;
+    }
+
+    /**
+     * Reads a download from the current row of a cursor.
+     *
+     * @param cursor Cursor over the downloads table.
+     * @return The download in the current row.
+     */
+    private static QueuedDownload fromCursor(Cursor cursor) {
+        return new QueuedDownload(
+                cursor.getString(cursor.getColumnIndex(DatabaseDef.Downloads.URL)),
+                cursor.getString(cursor.getColumnIndex(DatabaseDef.Downloads.FILE_NAME)),
+                cursor.getString(cursor.getColumnIndex(DatabaseDef.Downloads.BOARD_LINK)),
+                cursor.getString(cursor.getColumnIndex(DatabaseDef.Downloads.THREAD_NO)),
+                cursor.getString(cursor.getColumnIndex(DatabaseDef.Downloads.MD5)),
+                cursor.getString(cursor.getColumnIndex(DatabaseDef.Downloads.TIM)));
+    }
+}
@@ -0,0 +1,428 @@
+/*
+ * Infinity Browser 2014  Matt Blackman
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package blackman.matt.download;
+
+import android.app.NotificationManager;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.media.MediaScannerConnection;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.support.v4.app.NotificationCompat;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import blackman.matt.Utils.ImageDownloader;
+import blackman.matt.board.ImageFile;
+import blackman.matt.board.Post;
+import blackman.matt.infinitebrowser.R;
+
+/**
+ * Downloads every file in a thread through a queue kept in a database, so downloads that have
+ * not finished are picked up again the next time the app starts.
+ *
+ * A few files are downloaded at once, how many is set in the settings. Files that are already
+ * saved, looked up in the {@link SavedMediaDatabase} by their hash or name on the site, are
+ * skipped without being fetched. Each file is written to a part file first, and if the
+ * connection drops the part file is kept and the download carries on from where it stopped
+ * with a Range request, either on the next attempt or the next time the queue is resumed. The total speed of every
+ * download in the queue is shown in a notification.
+ */
+public class MediaDownloadQueue {
+    public static final String PREF_CONCURRENCY = "download_concurrency";
+    public static final int DEFAULT_CONCURRENCY = 2;
+
+    private static final String TAG = "MediaDownloadQueue";
+    private static final int BUFFER_SIZE = 8 * 1024;
+    private static final String PART_EXT = ".part";
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long RETRY_DELAY = 2 * 1000;
+    private static final int TIMEOUT = 30 * 1000;
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+    private static final int NOTIFICATION_ID = 2;
+
+    private static MediaDownloadQueue sInstance;
+
+    private final Context mContext;
+    private final MediaDownloadDatabase mDatabase;
+    private final SavedMediaDatabase mSavedMedia;
+    private final File mDirectory;
+    private final ThreadPoolExecutor mExecutor;
+    // Writes and reads the queue, never waiting behind downloads
+    private final ExecutorService mQueueWriter = Executors.newSingleThreadExecutor();
+    // Urls queued or downloading in this process, so nothing is downloaded twice at once
+    private final Set<String> mActive = new HashSet<String>();
+
+    // Totals of the current run of the queue, reset whenever it goes idle
+    private long mRunStart;
+    private long mRunBytes;
+    private int mRunTotal;
+    private int mRunSaved;
+    private int mRunSkipped;
+    private int mRunFailed;
+
+    /**
+     * Gets the queue, creating it the first time.
+     *
+     * @param context Context of the caller.
+     * @return The media download queue.
+     */
+    public static synchronized MediaDownloadQueue getInstance(Context context) {
+        if (sInstance == null) {
+            Context appContext = context.getApplicationContext();
+            sInstance = new MediaDownloadQueue(appContext, new MediaDownloadDatabase(appContext),
+                    SavedMediaDatabase.getInstance(appContext),
+                    ImageDownloader.getSaveDirectory(), getConcurrency(appContext));
+        }
+        return sInstance;
+    }
+
+    /**
+     * Creates a queue. Files are downloaded from whatever host their url names, so a queue can
+     * be pointed at a local server with a scratch folder.
+     *
+     * @param context Context of the app.
+     * @param database Database the queue is kept in.
+     * @param savedMedia Database of the files already saved.
+     * @param directory Folder the files are saved to.
+     * @param concurrency How many files are downloaded at once.
+     */
+    MediaDownloadQueue(Context context, MediaDownloadDatabase database,
+                       SavedMediaDatabase savedMedia, File directory, int concurrency) {
+        mContext = context;
+        mDatabase = database;
+        mSavedMedia = savedMedia;
+        mDirectory = directory;
+        mExecutor = new ThreadPoolExecutor(concurrency, concurrency, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Reads how many files to download at once from the settings.
+     *
+     * @param context Context of the caller.
+     * @return The number of files to download at once.
+     */
+    private static int getConcurrency(Context context) {
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        try {
+            return Math.max(1, Integer.parseInt(preferences.getString(PREF_CONCURRENCY,
+                    String.valueOf(DEFAULT_CONCURRENCY))));
+        } catch (NumberFormatException e) {
+            e.printStackTrace();
+            return DEFAULT_CONCURRENCY;
+        }
+    }
+
+    /**
+     * Changes how many files are downloaded at once. Files already downloading are finished.
+     *
+     * @param concurrency How many files to download at once.
+     */
+    public void setConcurrency(int concurrency) {
+        if (concurrency > mExecutor.getMaximumPoolSize()) {
+            mExecutor.setMaximumPoolSize(concurrency);
+            mExecutor.setCorePoolSize(concurrency);
+        } else {
+            mExecutor.setCorePoolSize(concurrency);
+            mExecutor.setMaximumPoolSize(concurrency);
+        }
+    }
+
+    /**
+     * Queues every file posted in a thread.
+     *
+     * @param posts The posts of the thread.
+     * @param boardRoot Root of board EG /v/, /tech/, etc..
+     * @param threadNo The thread the posts are in.
+     */
+    public void downloadThread(List<Post> posts, final String boardRoot,
+                               final String threadNo) {
+        final List<QueuedDownload> downloads = new ArrayList<QueuedDownload>();
+        for (Post post : posts) {
+            for (ImageFile image : post.images) {
+                downloads.add(new QueuedDownload(image.getFullUrl(), image.getFileName(),
+                        boardRoot, threadNo, image.getMd5(), image.getTim()));
+            }
+        }
+        setConcurrency(getConcurrency(mContext));
+
+        // Written on its own thread so the request is saved at once, even with downloads waiting
+        mQueueWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                List<QueuedDownload> added = mDatabase.addDownloads(downloads);
+                Log.d(TAG, "Queued " + added.size() + " of " + downloads.size() + " files from "
+                        + boardRoot + "/" + threadNo);
+                enqueue(added);
+            }
+        });
+    }
+
+    /**
+     * Picks up every download left in the queue, such as ones stopped by the app closing or
+     * the network going away.
+     */
+    public void resume() {
+        mQueueWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                List<QueuedDownload> downloads = mDatabase.getDownloads();
+                if (!downloads.isEmpty()) {
+                    Log.d(TAG, "Resuming " + downloads.size() + " downloads");
+                }
+                enqueue(downloads);
+            }
+        });
+    }
+
+    /**
+     * Hands downloads to the workers, leaving out any that are already being handled.
+     *
+     * @param downloads The downloads to start.
+     */
+    private void enqueue(List<QueuedDownload> downloads) {
+        for (final QueuedDownload download : downloads) {
+            synchronized (this) {
+                if (!mActive.add(download.url)) {
+                    continue;
+                }
+                if (mRunTotal == 0) {
+                    mRunStart = SystemClock.elapsedRealtime();
+                }
+                mRunTotal++;
+            }
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    download(download);
+                }
+            });
+        }
+    }
+
+    /**
+     * Downloads a single file, trying again a few times if the connection fails. A download
+     * that still fails is left in the queue with its part file for the next resume.
+     *
+     * @param download The file to download.
+     */
+    private void download(QueuedDownload download) {
+        File file = mSavedMedia.findSaved(download.md5, download.boardRoot, download.tim);
+        // Named after the site's name for the file so it never clashes with another download
+        File part = new File(mDirectory, download.boardRoot + "-" + download.tim + PART_EXT);
+        boolean saved = false;
+        boolean skipped = false;
+
+        if (file != null) {
+            skipped = true;
+        } else if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+            Log.e(TAG, "Could not create " + mDirectory);
+        } else {
+            for (int attempt = 1; attempt <= MAX_ATTEMPTS && !saved; attempt++) {
+                try {
+                    String md5 = fetch(download.url, part);
+                    file = mSavedMedia.keepDownload(part, mDirectory, download.fileName, md5,
+                            download.boardRoot, download.tim);
+                    saved = true;
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    if (attempt < MAX_ATTEMPTS) {
+                        SystemClock.sleep(RETRY_DELAY * attempt);
+                    }
+                }
+            }
+        }
+
+        if (saved || skipped) {
+            mDatabase.removeDownload(download.url);
+        }
+        if (saved) {
+            MediaScannerConnection.scanFile(mContext, new String[] { file.getPath() }, null,
+                    null);
+        }
+        finished(download, saved, skipped);
+    }
+
+    /**
+     * Downloads a file into its part file, carrying on from the end of the part file if there
+     * already is one.
+     *
+     * @param url Where the file is downloaded from.
+     * @param part The part file being written.
+     * @return Base64 MD5 of the whole file.
+     * @throws IOException If the download does not finish.
+     */
+    private String fetch(String url, File part) throws IOException {
+        long offset = part.exists() ? part.length() : 0;
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        InputStream in = null;
+        OutputStream out = null;
+        try {
+            connection.setConnectTimeout(TIMEOUT);
+            connection.setReadTimeout(TIMEOUT);
+            // Ranges are counted in the bytes of the file, not of a compressed response
+            connection.setRequestProperty("Accept-Encoding", "identity");
+            if (offset > 0) {
+                connection.setRequestProperty("Range", "bytes=" + offset + "-");
+            }
+
+            int status = connection.getResponseCode();
+            boolean append;
+            if (status == HttpURLConnection.HTTP_PARTIAL && offset > 0) {
+                append = true;
+            } else if (status == HttpURLConnection.HTTP_OK) {
+                // The server sent the whole file, so the part file is started over
+                append = false;
+            } else {
+                if (status == HTTP_RANGE_NOT_SATISFIABLE) {
+                    // The part file no longer matches the file, start again from nothing
+                    part.delete();
+                }
+                throw new IOException("Downloading " + url + " failed with status " + status);
+            }
+
+            MessageDigest digest = MediaHash.newDigest();
+            if (append) {
+                MediaHash.update(digest, part);
+            }
+
+            int length = connection.getContentLength();
+            in = connection.getInputStream();
+            out = new FileOutputStream(part, append);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long copied = 0;
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+                digest.update(buffer, 0, read);
+                copied += read;
+                addBytes(read);
+            }
+            if (length >= 0 && copied != length) {
+                throw new IOException("Downloading " + url + " stopped after " + copied
+                        + " of " + length + " bytes");
+            }
+            return MediaHash.toString(digest);
+        } finally {
+            closeQuietly(out);
+            closeQuietly(in);
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Adds to the bytes downloaded in this run of the queue.
+     *
+     * @param bytes Bytes just downloaded.
+     */
+    private synchronized void addBytes(long bytes) {
+        mRunBytes += bytes;
+    }
+
+    /**
+     * Counts a finished download and shows how the queue is going.
+     *
+     * @param download The download that finished.
+     * @param saved If the file was saved.
+     * @param skipped If the file was already saved.
+     */
+    private void finished(QueuedDownload download, boolean saved, boolean skipped) {
+        int done;
+        int total;
+        long rate;
+        String summary;
+        synchronized (this) {
+            mActive.remove(download.url);
+            if (saved) {
+                mRunSaved++;
+            } else if (skipped) {
+                mRunSkipped++;
+            } else {
+                mRunFailed++;
+            }
+            done = mRunSaved + mRunSkipped + mRunFailed;
+            total = mRunTotal;
+            long elapsed = Math.max(1, SystemClock.elapsedRealtime() - mRunStart);
+            rate = mRunBytes * 1000 / elapsed / 1024;
+            summary = mRunSaved + " saved, " + mRunSkipped + " skipped, " + mRunFailed
+                    + " failed, " + (mRunBytes / 1024) + "KB in " + elapsed + "ms, " + rate
+                    + "KB/s";
+
+            if (done == total) {
+                mRunTotal = 0;
+                mRunBytes = 0;
+                mRunSaved = 0;
+                mRunSkipped = 0;
+                mRunFailed = 0;
+            }
+        }
+
+        NotificationCompat.Builder notification = new NotificationCompat.Builder(mContext)
+                .setContentTitle(mContext.getString(R.string.download_all_title));
+        if (done < total) {
+            notification.setSmallIcon(android.R.drawable.stat_sys_download)
+                    .setContentText(mContext.getString(R.string.download_all_progress, done,
+                            total, rate))
+                    .setProgress(total, done, false)
+                    .setOngoing(true);
+        } else {
+            Log.d(TAG, "Queue finished: " + summary);
+            notification.setSmallIcon(android.R.drawable.stat_sys_download_done)
+                    .setContentText(mContext.getString(R.string.download_all_done, total, rate))
+                    .setAutoCancel(true);
+        }
+        ((NotificationManager) mContext.getSystemService(Context.NOTIFICATION_SERVICE))
+                .notify(NOTIFICATION_ID, notification.build());
+    }
+
+    /**
+     * Closes a stream, ignoring any error.
+     *
+     * @param stream The stream or null.
+     */
+    private static void closeQuietly(Closeable stream) {
+        if (stream != null) {
+            try {
+                stream.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Infinity Browser 2014  Matt Blackman
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package blackman.matt.download;
+
+import android.util.Base64;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Hashes media the same way the site does, a base64 MD5 of the file's bytes, so files can be
+ * matched against the hashes in the thread JSON.
+ */
+public final class MediaHash {
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    /**
+     * Not meant to be created.
+     */
+    private MediaHash() {
+    }
+
+    /**
+     * Creates a digest to be fed a file's bytes as they are downloaded.
+     *
+     * @return A new MD5 digest.
+     */
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Android device has MD5
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Feeds the bytes already in a file to a digest, used when a download carries on from a
+     * part file.
+     *
+     * @param digest The digest.
+     * @param file The file to read.
+     * @throws IOException If the file can not be read.
+     */
+    public static void update(MessageDigest digest, File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Finishes a digest.
+     *
+     * @param digest The digest, which is reset.
+     * @return The hash in the site's format.
+     */
+    public static String toString(MessageDigest digest) {
+        return Base64.encodeToString(digest.digest(), Base64.NO_WRAP);
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Infinity Browser 2014  Matt Blackman
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package blackman.matt.download;
+
+/**
+ * A single file waiting in the media download queue.
+ */
+public class QueuedDownload {
+    public String url;
+    public String fileName;
+    public String boardRoot;
+    public String threadNo;
+    public String md5;
+    public String tim;
+
+    /**
+     * Basic constructor.
+     *
+     * @param url Where the file is downloaded from.
+     * @param fileName Name the file is saved under.
+     * @param boardRoot Root of board EG /v/, /tech/, etc..
+     * @param threadNo The thread the file was posted in.
+     * @param md5 Base64 MD5 the site gave for the file, or empty.
+     * @param tim The site's name for the file.
+     */
+    public QueuedDownload(String url, String fileName, String boardRoot, String threadNo,
+                          String md5, String tim) {
+        this.url = url;
+        this.fileName = fileName;
+        this.boardRoot = boardRoot;
+        this.threadNo = threadNo;
+        this.md5 = md5;
+        this.tim = tim;
+    }
+}
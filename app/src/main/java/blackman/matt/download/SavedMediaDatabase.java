@@ -0,0 +1,232 @@
+/*
+ * Infinity Browser 2014  Matt Blackman
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package blackman.matt.download;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A database of the media the user has saved, looked up by the hash of the file's content and
+ * by the name the site stores it under. Saves are checked against it so a file is never saved
+ * twice, even when it was posted again under another name, and saved files get a name that
+ * does not overwrite a different file with the same name.
+ *
+ * Both lookups are indexed so they stay quick however many files have been saved.
+ */
+public class SavedMediaDatabase extends SQLiteOpenHelper {
+    private static final int DATABASE_VERSION = 1;
+    private static final String DATABASE_NAME = "SavedMedia.db";
+    private static final String TAG = "SavedMediaDatabase";
+
+    // Query to create the table.
+    private static final String SQL_CREATE_ENTRIES = "CREATE TABLE " +
+            DatabaseDef.SavedMedia.TABLE_NAME + " (" +
+            DatabaseDef.SavedMedia.MEDIA_ID + " INTEGER PRIMARY KEY," +
+            DatabaseDef.SavedMedia.MD5 + " TEXT," +
+            DatabaseDef.SavedMedia.BOARD_LINK + " TEXT," +
+            DatabaseDef.SavedMedia.TIM + " TEXT," +
+            DatabaseDef.SavedMedia.PATH + " TEXT," +
+            "UNIQUE (" + DatabaseDef.SavedMedia.BOARD_LINK + ", " +
+            DatabaseDef.SavedMedia.TIM + ")" +
+            " )";
+
+    // Indexes the hash, the board and tim are indexed by their unique constraint.
+    private static final String SQL_CREATE_MD5_INDEX = "CREATE INDEX " +
+            DatabaseDef.SavedMedia.TABLE_NAME + "_" + DatabaseDef.SavedMedia.MD5 + " ON " +
+            DatabaseDef.SavedMedia.TABLE_NAME + " (" + DatabaseDef.SavedMedia.MD5 + ")";
+
+    // Query to delete all the entries.
+    private static final String SQL_DELETE_ENTRIES =
+            "DROP TABLE IF EXISTS " + DatabaseDef.SavedMedia.TABLE_NAME;
+
+    private static final String SQL_SELECT_MD5 = DatabaseDef.SavedMedia.MD5 + "=?";
+    private static final String SQL_SELECT_TIM = DatabaseDef.SavedMedia.BOARD_LINK +
+            "=? AND " + DatabaseDef.SavedMedia.TIM + "=?";
+
+    private static SavedMediaDatabase sInstance;
+
+    /**
+     * Gets the database, creating it the first time. It is shared so saves from different
+     * threads are checked against each other.
+     *
+     * @param context Context of the caller.
+     * @return The saved media database.
+     */
+    public static synchronized SavedMediaDatabase getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new SavedMediaDatabase(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Constructor to set up the database for the caller.
+     *
+     * @param context Context of the caller
+     */
+    private SavedMediaDatabase(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    }
+
+    /**
+     * Creates the table when the class is initialized as an object.
+     *
+     * @param database The database being created.
+     */
+    @Override
+    public void onCreate(SQLiteDatabase database) {
+        database.execSQL(SQL_CREATE_ENTRIES);
+        database.execSQL(SQL_CREATE_MD5_INDEX);
+    }
+
+    /**
+     * Whenever the database is being updated to a new version, the tables is cleared out and
+     * remade with the new database version.
+     *
+     * @param db The database being upgraded.
+     * @param oldVersion The version the current database is.
+     * @param newVersion The version the database is being updated to.
+     */
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        Log.w(SavedMediaDatabase.class.getName(),
+                "Upgrading database from version " + oldVersion + " to "
+                        + newVersion + ", which will destroy all old data");
+        db.execSQL(SQL_DELETE_ENTRIES);
+        onCreate(db);
+    }
+
+    /**
+     * Finds a file that has already been saved, by its hash if the site gave one and
+     * otherwise by the name the site stores it under. Called before downloading so nothing is
+     * fetched for a file that is already saved.
+     *
+     * @param md5 Base64 MD5 the site gave for the file, or empty.
+     * @param boardRoot Board the file was posted on.
+     * @param tim The site's name for the file.
+     * @return The saved file or null if it has not been saved.
+     */
+    public synchronized File findSaved(String md5, String boardRoot, String tim) {
+        File saved = null;
+        if (md5 != null && !md5.equals("")) {
+            saved = findPath(SQL_SELECT_MD5, new String[] { md5 });
+        }
+        if (saved == null) {
+            saved = findPath(SQL_SELECT_TIM, new String[] { boardRoot, tim });
+        }
+        return saved;
+    }
+
+    /**
+     * Moves a finished download into place and records it. If a file with the same content
+     * was already saved the download is thrown away instead. If a different file already has
+     * the download's name, the site's name for the file is added to it.
+     *
+     * @param part The finished download.
+     * @param directory Folder the file is saved to.
+     * @param fileName Name the file was posted with.
+     * @param md5 Base64 MD5 of the downloaded bytes.
+     * @param boardRoot Board the file was posted on.
+     * @param tim The site's name for the file.
+     * @return The saved file, which may be one saved earlier.
+     * @throws IOException If the download could not be moved into place.
+     */
+    public synchronized File keepDownload(File part, File directory, String fileName,
+                                          String md5, String boardRoot, String tim)
+            throws IOException {
+        File file = findPath(SQL_SELECT_MD5, new String[] { md5 });
+        if (file != null) {
+            Log.d(TAG, fileName + " is already saved as " + file.getName());
+            part.delete();
+        } else {
+            file = getUniqueFile(directory, fileName, tim);
+            if (!part.renameTo(file)) {
+                throw new IOException("Could not move " + part + " to " + file);
+            }
+        }
+
+        ContentValues values = new ContentValues();
+        values.put(DatabaseDef.SavedMedia.MD5, md5);
+        values.put(DatabaseDef.SavedMedia.BOARD_LINK, boardRoot);
+        values.put(DatabaseDef.SavedMedia.TIM, tim);
+        values.put(DatabaseDef.SavedMedia.PATH, file.getPath());
+        getWritableDatabase().insertWithOnConflict(DatabaseDef.SavedMedia.TABLE_NAME, null,
+                values, SQLiteDatabase.CONFLICT_REPLACE);
+        return file;
+    }
+
+    /**
+     * Finds the path of a saved file, forgetting it if the file has since been deleted.
+     *
+     * @param selection Which rows to look in.
+     * @param selectionArgs Values of the selection.
+     * @return The saved file or null if there is none.
+     */
+    private File findPath(String selection, String[] selectionArgs) {
+        Cursor cursor = getReadableDatabase().query(DatabaseDef.SavedMedia.TABLE_NAME,
+                new String[] { DatabaseDef.SavedMedia.PATH }, selection, selectionArgs, null,
+                null, null);
+        File saved = null;
+        int rows = cursor.getCount();
+        while (saved == null && cursor.moveToNext()) {
+            File file = new File(cursor.getString(0));
+            if (file.exists()) {
+                saved = file;
+            }
+        }
+        cursor.close();
+
+        if (saved == null && rows > 0) {
+            getWritableDatabase().delete(DatabaseDef.SavedMedia.TABLE_NAME, selection,
+                    selectionArgs);
+        }
+        return saved;
+    }
+
+    /**
+     * Picks a name for a saved file that does not overwrite another file.
+     *
+     * @param directory Folder the file is saved to.
+     * @param fileName Name the file was posted with.
+     * @param tim The site's name for the file.
+     * @return A file that does not exist yet.
+     */
+    private static File getUniqueFile(File directory, String fileName, String tim) {
+        File file = new File(directory, fileName);
+        if (!file.exists()) {
+            return file;
+        }
+
+        int dot = fileName.lastIndexOf('.');
+        String name = dot < 0 ? fileName : fileName.substring(0, dot);
+        String ext = dot < 0 ? "" : fileName.substring(dot);
+        file = new File(directory, name + "-" + tim + ext);
+        for (int i = 1; file.exists(); i++) {
+            file = new File(directory, name + "-" + tim + "-" + i + ext);
+        }
+        return file;
+    }
+}
@@ -27,7 +27,6 @@ import android.app.FragmentManager;
 import android.app.FragmentTransaction;
 import android.content.Intent;
 import android.content.SharedPreferences;
-import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.preference.PreferenceManager;
 import android.os.Bundle;
@@ -43,14 +42,16 @@ import com.nostra13.universalimageloader.core.DisplayImageOptions;
 import com.nostra13.universalimageloader.core.ImageLoaderConfiguration;
 import com.nostra13.universalimageloader.core.ImageLoader;
 
+import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import blackman.matt.settings.SettingsActivity;
 import blackman.matt.board.Board;
 import blackman.matt.boardlist.BoardListActivity;
-import blackman.matt.boardlist.BoardListDatabase;
-import blackman.matt.boardlist.DatabaseDef;
+import blackman.matt.boardlist.FavoritesStore;
+import blackman.matt.download.MediaDownloadQueue;
+import blackman.matt.watcher.ThreadWatcherService;
 
 
 /**
@@ -72,6 +73,9 @@ public class InfinityBrowser extends Activity
      */
     private NavigationDrawerFragment mNavigationDrawerFragment;
 
+    // Opens the first favorited board once the favorites are loaded, null once it has run
+    private FavoritesStore.OnFavoritesChangedListener mFirstBoardListener;
+
     /**
      * Generic onCreate method generated by the IDE. Called when the application is first
      * initialized.
@@ -91,6 +95,12 @@ public class InfinityBrowser extends Activity
 
         loadUpABoard();
 
+        // Make sure watched threads keep being polled after a reboot or update.
+        ThreadWatcherService.schedule(this);
+        // Read while the rest of the activity is set up, so the drawer has them sooner
+        FavoritesStore.getInstance(this).load();
+        MediaDownloadQueue.getInstance(this).resume();
+
         // Set up navigation drawer
         mNavigationDrawerFragment = (NavigationDrawerFragment)
                 getFragmentManager().findFragmentById(R.id.navigation_drawer);
@@ -130,8 +140,8 @@ public class InfinityBrowser extends Activity
                 mTitle = "/" + defaultBoard.toLowerCase() + "/";
 
             } else {
-                newBoard = getFirstDrawerItem();
-
+                newBoard = null;
+                loadFirstDrawerItem();
             }
             if(newBoard != null) {
                 fragmentTransaction.replace(R.id.container, newBoard, mTitle.toString());
@@ -217,25 +227,42 @@ public class InfinityBrowser extends Activity
     }
 
     /**
-     * Gets the first board from the favorited board drawer.
-     *
-     * @return The newly created board.
+     * Opens the first board from the favorited board drawer once the favorites are loaded, so
+     * startup does not wait on the database.
      */
-    private Board getFirstDrawerItem() {
-        Board newBoard = null;
-        BoardListDatabase db = new BoardListDatabase(this);
-        Cursor cursor =  db.getFavoritedBoards();
-
-        if(cursor.moveToNext()) {
-            String boardLink = cursor.getString(
-                    cursor.getColumnIndex(DatabaseDef.Boards.BOARD_LINK)).toLowerCase();
-            newBoard = Board.newInstance(boardLink);
-            mTitle = boardLink;
-        } else {
-            //findViewById(R.id.ll_help_add_boards).setVisibility(View.VISIBLE);
+    private void loadFirstDrawerItem() {
+        mFirstBoardListener = new FavoritesStore.OnFavoritesChangedListener() {
+            @Override
+            public void onFavoritesChanged(List<String> favorites) {
+                FavoritesStore.getInstance(InfinityBrowser.this).removeListener(this);
+                mFirstBoardListener = null;
+                if (favorites.isEmpty() || isFinishing()) {
+                    //findViewById(R.id.ll_help_add_boards).setVisibility(View.VISIBLE);
+                    return;
+                }
+
+                String boardLink = favorites.get(0).toLowerCase();
+                mTitle = boardLink;
+                getFragmentManager().beginTransaction()
+                        .replace(R.id.container, Board.newInstance(boardLink), boardLink)
+                        .commitAllowingStateLoss();
+                findViewById(R.id.ll_help_add_boards).setVisibility(View.GONE);
+                setTitle(mTitle);
+            }
+        };
+        FavoritesStore.getInstance(this).addListener(mFirstBoardListener);
+    }
+
+    /**
+     * Stops waiting on the favorites, so a board is not opened in an activity that is gone.
+     */
+    @Override
+    protected void onDestroy() {
+        if (mFirstBoardListener != null) {
+            FavoritesStore.getInstance(this).removeListener(mFirstBoardListener);
+            mFirstBoardListener = null;
         }
-        cursor.close();
-        return newBoard;
+        super.onDestroy();
     }
 
     /**
@@ -24,7 +24,6 @@ import android.app.ActionBar;
 import android.app.Fragment;
 import android.app.FragmentManager;
 import android.app.FragmentTransaction;
-import android.database.Cursor;
 import android.support.v4.app.ActionBarDrawerToggle;
 import android.support.v4.view.GravityCompat;
 import android.support.v4.widget.DrawerLayout;
@@ -39,13 +38,16 @@ import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.AdapterView;
+import android.widget.ArrayAdapter;
 import android.widget.LinearLayout;
 import android.widget.ListView;
-import android.widget.SimpleCursorAdapter;
 import android.widget.TextView;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import blackman.matt.board.Board;
-import blackman.matt.boardlist.BoardListDatabase;
+import blackman.matt.boardlist.FavoritesStore;
 
 /**
  * Fragment used for managing interactions for and presentation of a navigation drawer.
@@ -81,6 +83,22 @@ public class NavigationDrawerFragment extends Fragment {
     private int mCurrentSelectedPosition = 0;
     private boolean mFromSavedInstanceState;
     private boolean mUserLearnedDrawer;
+    private ArrayAdapter<String> mFavoritesAdapter;
+
+    // Fills the drawer with the favorited boards whenever they change
+    private final FavoritesStore.OnFavoritesChangedListener mFavoritesChanged =
+            new FavoritesStore.OnFavoritesChangedListener() {
+                @Override
+                public void onFavoritesChanged(List<String> favorites) {
+                    if (mFavoritesAdapter == null) {
+                        return;
+                    }
+                    mFavoritesAdapter.setNotifyOnChange(false);
+                    mFavoritesAdapter.clear();
+                    mFavoritesAdapter.addAll(favorites);
+                    mFavoritesAdapter.notifyDataSetChanged();
+                }
+            };
 
     /**
      * Auto-generated constructor full of nothing.
@@ -167,21 +185,17 @@ public class NavigationDrawerFragment extends Fragment {
     }
 
     /**
-     * Sets up the list adapter for the list of boards the user is following.
+     * Sets up the list adapter for the list of boards the user is following. The boards come
+     * from the favorites store, which fills the list once it has loaded them and keeps it up
+     * to date.
      */
     private void setUpListAdapter() {
-        BoardListDatabase boardListDB;
-        Cursor cursor;
-
-        boardListDB = new BoardListDatabase(getActivity());
-
-        cursor = boardListDB.getFavoritedBoards();
-
-        String[] from = new String[]{"boardlink"};
-        int[] to = new int[]{R.id.text};
+        if (mFavoritesAdapter != null) {
+            return;
+        }
 
-        SimpleCursorAdapter cursorAdapter = new SimpleCursorAdapter(mDrawerListView.getContext(),
-                R.layout.drawer_item, cursor, from, to, 0) {
+        mFavoritesAdapter = new ArrayAdapter<String>(mDrawerListView.getContext(),
+                R.layout.drawer_item, R.id.text, new ArrayList<String>()) {
             @Override
             public View getView(int position, View convertView, ViewGroup parent) {
                 View view = super.getView(position, convertView, parent);
@@ -192,9 +206,19 @@ public class NavigationDrawerFragment extends Fragment {
             }
         };
 
-        mDrawerListView.setAdapter(cursorAdapter);
+        mDrawerListView.setAdapter(mFavoritesAdapter);
 
-        boardListDB.close();
+        FavoritesStore.getInstance(getActivity()).addListener(mFavoritesChanged);
+    }
+
+    /**
+     * Stops following the favorites once the list is gone.
+     */
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+        FavoritesStore.getInstance(getActivity()).removeListener(mFavoritesChanged);
+        mFavoritesAdapter = null;
     }
 
     /**
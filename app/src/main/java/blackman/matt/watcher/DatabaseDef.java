@@ -0,0 +1,50 @@
+/*
+ * Infinity Browser 2014  Matt Blackman
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package blackman.matt.watcher;
+
+import android.provider.BaseColumns;
+
+/**
+ * Defines the columns of the database to hold the watched threads in.
+ */
+public class DatabaseDef {
+
+    /**
+     * Column definition.
+     */
+    public static final class WatchedThreads implements BaseColumns {
+        /**
+         * Empty constructor.
+         */
+        private WatchedThreads(){
+        }
+
+        public static final String TABLE_NAME = "watchedthreads";
+        public static final String THREAD_ID = "_id";
+        public static final String BOARD_LINK = "boardlink";
+        public static final String THREAD_NO = "threadno";
+        public static final String POST_COUNT = "postcount";
+        public static final String LAST_POST_NO = "lastpostno";
+        public static final String NEW_REPLIES = "newreplies";
+        public static final String POLL_INTERVAL = "pollinterval"; // Milliseconds
+        public static final String NEXT_POLL = "nextpoll"; // Milliseconds since epoch
+        public static final String ETAG = "etag";
+        public static final String LAST_MODIFIED = "lastmodified";
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ * Infinity Browser 2014  Matt Blackman
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package blackman.matt.watcher;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+import blackman.matt.Utils.HttpLoader;
+import blackman.matt.Utils.PostJsonReader;
+import blackman.matt.board.Board;
+
+/**
+ * Keeps track of the threads the user is watching and checks them for new replies.
+ *
+ * Every thread is polled on its own interval. The interval is halved whenever new replies are
+ * found and doubled whenever a thread is quiet, so busy threads are checked often and dead ones
+ * hardly at all. Threads that are due close together are polled in the same pass so they share
+ * a single wake up of the network.
+ */
+public class ThreadWatcher {
+    public static final long MIN_POLL_INTERVAL = 60 * 1000;
+    public static final long MAX_POLL_INTERVAL = 30 * 60 * 1000;
+    public static final long START_POLL_INTERVAL = 2 * 60 * 1000;
+
+    // Threads due within this long of a poll are polled along with it.
+    public static final long BATCH_WINDOW = 60 * 1000;
+
+    private static final String TAG = "ThreadWatcher";
+
+    private final ThreadWatcherDatabase mDatabase;
+    // Server the threads are polled from, null for the site
+    private final URL mServer;
+
+    /**
+     * Creates a watcher over the stored watched threads.
+     *
+     * @param database Database the watched threads are kept in.
+     */
+    public ThreadWatcher(ThreadWatcherDatabase database) {
+        this(database, null);
+    }
+
+    /**
+     * Creates a watcher that polls the threads from another server, such as a local stub
+     * serving thread JSON at the same paths as the site.
+     *
+     * @param database Database the watched threads are kept in.
+     * @param server Root of the server, EG http://127.0.0.1:8080/, or null for the site.
+     */
+    public ThreadWatcher(ThreadWatcherDatabase database, URL server) {
+        mDatabase = database;
+        mServer = server;
+    }
+
+    /**
+     * Starts watching a thread.
+     *
+     * @param boardRoot Root of board EG /v/, /tech/, etc..
+     * @param threadNo The thread to watch.
+     * @param postCount How many posts the thread has now.
+     * @param lastPostNo The newest post in the thread now, or {@link WatchedThread#NO_POST} if
+     *                   it has none yet.
+     */
+    public void watch(String boardRoot, String threadNo, int postCount, long lastPostNo) {
+        WatchedThread thread = new WatchedThread(boardRoot, threadNo);
+        thread.postCount = postCount;
+        thread.lastPostNo = lastPostNo;
+        thread.pollInterval = START_POLL_INTERVAL;
+        thread.nextPoll = System.currentTimeMillis() + START_POLL_INTERVAL;
+        mDatabase.saveThread(thread);
+    }
+
+    /**
+     * Stops watching a thread.
+     *
+     * @param boardRoot Root of board EG /v/, /tech/, etc..
+     * @param threadNo The thread to stop watching.
+     */
+    public void unwatch(String boardRoot, String threadNo) {
+        mDatabase.removeThread(boardRoot, threadNo);
+    }
+
+    /**
+     * Checks if a thread is being watched.
+     *
+     * @param boardRoot Root of board EG /v/, /tech/, etc..
+     * @param threadNo The thread to check.
+     * @return If the thread is being watched.
+     */
+    public boolean isWatched(String boardRoot, String threadNo) {
+        return mDatabase.getThread(boardRoot, threadNo) != null;
+    }
+
+    /**
+     * Clears the new replies of a thread once the user has opened it.
+     *
+     * @param boardRoot Root of board EG /v/, /tech/, etc..
+     * @param threadNo The thread that was read.
+     */
+    public void markRead(String boardRoot, String threadNo) {
+        mDatabase.clearNewReplies(boardRoot, threadNo);
+    }
+
+    /**
+     * Gets every watched thread with replies the user has not seen.
+     *
+     * @return The threads with new replies.
+     */
+    public List<WatchedThread> getThreadsWithNewReplies() {
+        List<WatchedThread> threads = new ArrayList<WatchedThread>();
+        for (WatchedThread thread : mDatabase.getWatchedThreads()) {
+            if (thread.newReplies > 0) {
+                threads.add(thread);
+            }
+        }
+        return threads;
+    }
+
+    /**
+     * Polls every thread that is due now or within the batch window. Must not be called on the
+     * UI thread.
+     *
+     * @return How many new replies were found in this pass.
+     */
+    public int pollDueThreads() {
+        long now = System.currentTimeMillis();
+        int newReplies = 0;
+        int polled = 0;
+
+        for (WatchedThread thread : mDatabase.getWatchedThreads()) {
+            // Sorted by next poll, nothing after this is due.
+            if (thread.nextPoll > now + BATCH_WINDOW) {
+                break;
+            }
+            newReplies += pollThread(thread, now);
+            polled++;
+        }
+
+        Log.d(TAG, "Polled " + polled + " threads, " + newReplies + " new replies");
+        return newReplies;
+    }
+
+    /**
+     * Gets when the next thread is due to be polled.
+     *
+     * @return Milliseconds since epoch of the next poll or -1 if nothing is being watched.
+     */
+    public long getNextPollTime() {
+        List<WatchedThread> threads = mDatabase.getWatchedThreads();
+        return threads.isEmpty() ? -1 : threads.get(0).nextPoll;
+    }
+
+    /**
+     * Polls a single thread and moves its next poll based on what was found.
+     *
+     * @param thread The thread to poll.
+     * @param now Time the poll started.
+     * @return How many new replies were found.
+     */
+    private int pollThread(WatchedThread thread, long now) {
+        int newReplies = 0;
+        boolean failed = false;
+        HttpLoader.Response response = null;
+
+        try {
+            response = HttpLoader.get(getThreadUrl(thread).toString(), thread.eTag,
+                    thread.lastModified);
+            if (!response.isNotModified()) {
+                long[] numbers = PostJsonReader.readPostNumbers(response.getContent());
+                newReplies = countNewReplies(numbers, thread.lastPostNo);
+
+                thread.postCount = numbers.length;
+                if (numbers.length > 0) {
+                    thread.lastPostNo = numbers[numbers.length - 1];
+                }
+                thread.eTag = response.getETag();
+                thread.lastModified = response.getLastModified();
+            }
+        } catch (HttpLoader.HttpStatusException e) {
+            if (e.getStatus() >= 400 && e.getStatus() < 500) {
+                // The thread was deleted or archived, it will never get another reply
+                Log.v(TAG, "/" + thread.boardRoot + "/" + thread.threadNo + " is gone ("
+                        + e.getStatus() + "), no longer watching it");
+                mDatabase.removeThread(thread.boardRoot, thread.threadNo);
+                return 0;
+            }
+            failed = true;
+            e.printStackTrace();
+        } catch (IOException e) {
+            failed = true;
+            e.printStackTrace();
+        } catch (IllegalStateException e) {
+            failed = true;
+            e.printStackTrace();
+        } finally {
+            if (response != null) {
+                response.close();
+            }
+        }
+
+        if (newReplies > 0) {
+            thread.pollInterval = Math.max(MIN_POLL_INTERVAL, thread.pollInterval / 2);
+        } else {
+            thread.pollInterval = Math.min(MAX_POLL_INTERVAL, thread.pollInterval * 2);
+        }
+        thread.nextPoll = now + thread.pollInterval;
+        mDatabase.updatePoll(thread, newReplies);
+
+        Log.v(TAG, "/" + thread.boardRoot + "/" + thread.threadNo + (failed ? " failed" :
+                " has " + newReplies + " new") + ", next poll in "
+                + thread.pollInterval / 1000 + "s");
+        return newReplies;
+    }
+
+    /**
+     * Counts the posts newer than the last one seen. Counted by number instead of position so
+     * deleted posts do not throw the count off.
+     *
+     * @param numbers Post numbers on the thread now.
+     * @param lastPostNo The newest post seen before, or {@link WatchedThread#NO_POST} if none
+     *                   was.
+     * @return How many posts are newer.
+     */
+    private static int countNewReplies(long[] numbers, long lastPostNo) {
+        if (lastPostNo == WatchedThread.NO_POST) {
+            return 0;
+        }
+
+        int count = 0;
+        for (long number : numbers) {
+            if (number > lastPostNo) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Gets the JSON page of a watched thread on the server being polled.
+     *
+     * @param thread The watched thread.
+     * @return Url of the thread's JSON.
+     * @throws MalformedURLException If the thread does not make a valid url.
+     */
+    private URL getThreadUrl(WatchedThread thread) throws MalformedURLException {
+        if (mServer == null) {
+            return Board.getThreadUrl(thread.boardRoot, thread.threadNo);
+        }
+        return new URL(mServer, thread.boardRoot + "/res/" + thread.threadNo + ".json");
+    }
+}
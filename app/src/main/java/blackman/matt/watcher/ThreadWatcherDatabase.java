@@ -0,0 +1,238 @@
+/*
+ * Infinity Browser 2014  Matt Blackman
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package blackman.matt.watcher;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A database to store the threads the user is watching.
+ */
+public class ThreadWatcherDatabase extends SQLiteOpenHelper {
+    private static final int DATABASE_VERSION = 1;
+    private static final String DATABASE_NAME = "WatchedThreads.db";
+
+    // Query to create the table.
+    private static final String SQL_CREATE_ENTRIES = "CREATE TABLE " +
+            DatabaseDef.WatchedThreads.TABLE_NAME + " (" +
+            DatabaseDef.WatchedThreads.THREAD_ID + " INTEGER PRIMARY KEY," +
+            DatabaseDef.WatchedThreads.BOARD_LINK + " TEXT," +
+            DatabaseDef.WatchedThreads.THREAD_NO + " TEXT," +
+            DatabaseDef.WatchedThreads.POST_COUNT + " INTEGER DEFAULT 0," +
+            DatabaseDef.WatchedThreads.LAST_POST_NO + " INTEGER DEFAULT 0," +
+            DatabaseDef.WatchedThreads.NEW_REPLIES + " INTEGER DEFAULT 0," +
+            DatabaseDef.WatchedThreads.POLL_INTERVAL + " INTEGER," +
+            DatabaseDef.WatchedThreads.NEXT_POLL + " INTEGER," +
+            DatabaseDef.WatchedThreads.ETAG + " TEXT," +
+            DatabaseDef.WatchedThreads.LAST_MODIFIED + " TEXT," +
+            "UNIQUE (" + DatabaseDef.WatchedThreads.BOARD_LINK + ", " +
+            DatabaseDef.WatchedThreads.THREAD_NO + ")" +
+            " )";
+
+    // Query to delete all the entries.
+    private static final String SQL_DELETE_ENTRIES =
+            "DROP TABLE IF EXISTS " + DatabaseDef.WatchedThreads.TABLE_NAME;
+
+    // Selects a single thread.
+    private static final String SQL_SELECT_THREAD = DatabaseDef.WatchedThreads.BOARD_LINK +
+            "=? AND " + DatabaseDef.WatchedThreads.THREAD_NO + "=?";
+
+    // Writes what a poll found without touching anything else in the row, so a thread that was
+    // unwatched or read while it was being polled stays that way.
+    private static final String SQL_UPDATE_POLL = "UPDATE " +
+            DatabaseDef.WatchedThreads.TABLE_NAME + " SET " +
+            DatabaseDef.WatchedThreads.POST_COUNT + "=?, " +
+            DatabaseDef.WatchedThreads.LAST_POST_NO + "=?, " +
+            DatabaseDef.WatchedThreads.ETAG + "=?, " +
+            DatabaseDef.WatchedThreads.LAST_MODIFIED + "=?, " +
+            DatabaseDef.WatchedThreads.POLL_INTERVAL + "=?, " +
+            DatabaseDef.WatchedThreads.NEXT_POLL + "=?, " +
+            DatabaseDef.WatchedThreads.NEW_REPLIES + "=" +
+            DatabaseDef.WatchedThreads.NEW_REPLIES + "+? WHERE " + SQL_SELECT_THREAD;
+
+    /**
+     * Constructor to set up the database for the caller.
+     *
+     * @param context Context of the caller
+     */
+    public ThreadWatcherDatabase(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    }
+
+    /**
+     * Creates the table when the class is initialized as an object.
+     *
+     * @param database The database being created.
+     */
+    @Override
+    public void onCreate(SQLiteDatabase database) {
+        database.execSQL(SQL_CREATE_ENTRIES);
+    }
+
+    /**
+     * Whenever the database is being updated to a new version, the tables is cleared out and
+     * remade with the new database version.
+     *
+     * @param db The database being upgraded.
+     * @param oldVersion The version the current database is.
+     * @param newVersion The version the database is being updated to.
+     */
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        Log.w(ThreadWatcherDatabase.class.getName(),
+                "Upgrading database from version " + oldVersion + " to "
+                        + newVersion + ", which will destroy all old data");
+        db.execSQL(SQL_DELETE_ENTRIES);
+        onCreate(db);
+    }
+
+    /**
+     * Adds a thread to the watched threads or updates it if it is already there.
+     *
+     * @param thread The thread being watched.
+     */
+    public void saveThread(WatchedThread thread) {
+        getWritableDatabase().insertWithOnConflict(DatabaseDef.WatchedThreads.TABLE_NAME, null,
+                toValues(thread), SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    /**
+     * Writes the result of polling a thread. Does nothing if the thread has stopped being
+     * watched since it was read.
+     *
+     * @param thread The polled thread.
+     * @param newReplies New replies found by the poll, added to the ones not seen yet.
+     */
+    public void updatePoll(WatchedThread thread, int newReplies) {
+        getWritableDatabase().execSQL(SQL_UPDATE_POLL, new Object[] { thread.postCount,
+                thread.lastPostNo, thread.eTag, thread.lastModified, thread.pollInterval,
+                thread.nextPoll, newReplies, thread.boardRoot, thread.threadNo });
+    }
+
+    /**
+     * Clears the new replies of a thread.
+     *
+     * @param boardRoot Board the thread is on.
+     * @param threadNo The thread's number.
+     */
+    public void clearNewReplies(String boardRoot, String threadNo) {
+        ContentValues values = new ContentValues();
+        values.put(DatabaseDef.WatchedThreads.NEW_REPLIES, 0);
+        getWritableDatabase().update(DatabaseDef.WatchedThreads.TABLE_NAME, values,
+                SQL_SELECT_THREAD, new String[] { boardRoot, threadNo });
+    }
+
+    /**
+     * Stops watching a thread.
+     *
+     * @param boardRoot Board the thread is on.
+     * @param threadNo The thread's number.
+     */
+    public void removeThread(String boardRoot, String threadNo) {
+        getWritableDatabase().delete(DatabaseDef.WatchedThreads.TABLE_NAME, SQL_SELECT_THREAD,
+                new String[] { boardRoot, threadNo });
+    }
+
+    /**
+     * Gets a single watched thread.
+     *
+     * @param boardRoot Board the thread is on.
+     * @param threadNo The thread's number.
+     * @return The thread or null if it is not being watched.
+     */
+    public WatchedThread getThread(String boardRoot, String threadNo) {
+        Cursor cursor = getReadableDatabase().query(DatabaseDef.WatchedThreads.TABLE_NAME, null,
+                SQL_SELECT_THREAD, new String[] { boardRoot, threadNo }, null, null, null);
+        WatchedThread thread = null;
+        if (cursor.moveToFirst()) {
+            thread = fromCursor(cursor);
+        }
+        cursor.close();
+        return thread;
+    }
+
+    /**
+     * Gets all the threads being watched, the ones due to be checked first.
+     *
+     * @return The watched threads.
+     */
+    public List<WatchedThread> getWatchedThreads() {
+        Cursor cursor = getReadableDatabase().query(DatabaseDef.WatchedThreads.TABLE_NAME, null,
+                null, null, null, null, DatabaseDef.WatchedThreads.NEXT_POLL + " ASC");
+        List<WatchedThread> threads = new ArrayList<WatchedThread>(cursor.getCount());
+        while (cursor.moveToNext()) {
+            threads.add(fromCursor(cursor));
+        }
+        cursor.close();
+        return threads;
+    }
+
+    /**
+     * Turns a thread into the values of its row.
+     *
+     * @param thread The thread.
+     * @return The values of the thread's row.
+     */
+    private static ContentValues toValues(WatchedThread thread) {
+        ContentValues values = new ContentValues();
+        values.put(DatabaseDef.WatchedThreads.BOARD_LINK, thread.boardRoot);
+        values.put(DatabaseDef.WatchedThreads.THREAD_NO, thread.threadNo);
+        values.put(DatabaseDef.WatchedThreads.POST_COUNT, thread.postCount);
+        values.put(DatabaseDef.WatchedThreads.LAST_POST_NO, thread.lastPostNo);
+        values.put(DatabaseDef.WatchedThreads.NEW_REPLIES, thread.newReplies);
+        values.put(DatabaseDef.WatchedThreads.POLL_INTERVAL, thread.pollInterval);
+        values.put(DatabaseDef.WatchedThreads.NEXT_POLL, thread.nextPoll);
+        values.put(DatabaseDef.WatchedThreads.ETAG, thread.eTag);
+        values.put(DatabaseDef.WatchedThreads.LAST_MODIFIED, thread.lastModified);
+        return values;
+    }
+
+    /**
+     * Reads a thread from the current row of a cursor.
+     *
+     * @param cursor Cursor over the watched threads table.
+     * @return The thread in the current row.
+     */
+    private static WatchedThread fromCursor(Cursor cursor) {
+        WatchedThread thread = new WatchedThread(
+                cursor.getString(cursor.getColumnIndex(DatabaseDef.WatchedThreads.BOARD_LINK)),
+                cursor.getString(cursor.getColumnIndex(DatabaseDef.WatchedThreads.THREAD_NO)));
+        thread.postCount = cursor.getInt(
+                cursor.getColumnIndex(DatabaseDef.WatchedThreads.POST_COUNT));
+        thread.lastPostNo = cursor.getLong(
+                cursor.getColumnIndex(DatabaseDef.WatchedThreads.LAST_POST_NO));
+        thread.newReplies = cursor.getInt(
+                cursor.getColumnIndex(DatabaseDef.WatchedThreads.NEW_REPLIES));
+        thread.pollInterval = cursor.getLong(
+                cursor.getColumnIndex(DatabaseDef.WatchedThreads.POLL_INTERVAL));
+        thread.nextPoll = cursor.getLong(
+                cursor.getColumnIndex(DatabaseDef.WatchedThreads.NEXT_POLL));
+        thread.eTag = cursor.getString(cursor.getColumnIndex(DatabaseDef.WatchedThreads.ETAG));
+        thread.lastModified = cursor.getString(
+                cursor.getColumnIndex(DatabaseDef.WatchedThreads.LAST_MODIFIED));
+        return thread;
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Infinity Browser 2014  Matt Blackman
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package blackman.matt.watcher;
+
+import android.app.AlarmManager;
+import android.app.IntentService;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.support.v4.app.NotificationCompat;
+
+import java.util.List;
+
+import blackman.matt.infinitebrowser.InfinityBrowser;
+import blackman.matt.infinitebrowser.R;
+
+/**
+ * Wakes up when the next watched thread is due, polls every thread that is due around then and
+ * lets the user know about new replies. Sets its own alarm for the next poll before finishing.
+ */
+public class ThreadWatcherService extends IntentService {
+    private static final int NOTIFICATION_ID = 1;
+
+    /**
+     * Names the worker thread.
+     */
+    public ThreadWatcherService() {
+        super("ThreadWatcherService");
+    }
+
+    /**
+     * Polls the due threads on the worker thread.
+     *
+     * @param intent The alarm's intent.
+     */
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        ThreadWatcherDatabase database = new ThreadWatcherDatabase(this);
+        ThreadWatcher watcher = new ThreadWatcher(database);
+
+        if (watcher.pollDueThreads() > 0) {
+            showNewReplies(watcher.getThreadsWithNewReplies());
+        }
+        schedule(this, watcher.getNextPollTime());
+        database.close();
+    }
+
+    /**
+     * Shows a notification with the watched threads that have new replies.
+     *
+     * @param threads The threads with new replies.
+     */
+    private void showNewReplies(List<WatchedThread> threads) {
+        if (threads.isEmpty()) {
+            return;
+        }
+
+        int total = 0;
+        for (WatchedThread thread : threads) {
+            total += thread.newReplies;
+        }
+
+        // A single thread can be opened straight from the notification.
+        Intent open = new Intent(this, InfinityBrowser.class);
+        String title;
+        if (threads.size() == 1) {
+            WatchedThread thread = threads.get(0);
+            open.putExtra(InfinityBrowser.ARG_BOARD, thread.boardRoot);
+            open.putExtra(InfinityBrowser.ARG_THREAD, thread.threadNo);
+            title = "/" + thread.boardRoot + "/" + thread.threadNo + "/";
+        } else {
+            title = getString(R.string.watcher_threads_updated, threads.size());
+        }
+
+        NotificationCompat.Builder builder = new NotificationCompat.Builder(this)
+                .setSmallIcon(R.drawable.ic_launcher)
+                .setContentTitle(title)
+                .setContentText(getString(R.string.watcher_new_replies, total))
+                .setNumber(total)
+                .setAutoCancel(true)
+                .setContentIntent(PendingIntent.getActivity(this, 0, open,
+                        PendingIntent.FLAG_UPDATE_CURRENT));
+
+        NotificationManager manager =
+                (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+        manager.notify(NOTIFICATION_ID, builder.build());
+    }
+
+    /**
+     * Sets the alarm for the next thread that is due. Can be called from the UI thread.
+     *
+     * @param context Context of the caller.
+     */
+    public static void schedule(final Context context) {
+        final Context appContext = context.getApplicationContext();
+        new Thread() {
+            public void run() {
+                ThreadWatcherDatabase database = new ThreadWatcherDatabase(appContext);
+                schedule(appContext, new ThreadWatcher(database).getNextPollTime());
+                database.close();
+            }
+        }.start();
+    }
+
+    /**
+     * Sets or cancels the alarm that starts the service.
+     *
+     * @param context Context of the caller.
+     * @param nextPoll When to wake up, or -1 to stop waking up.
+     */
+    private static void schedule(Context context, long nextPoll) {
+        AlarmManager alarms = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        PendingIntent poll = PendingIntent.getService(context, 0,
+                new Intent(context, ThreadWatcherService.class),
+                PendingIntent.FLAG_UPDATE_CURRENT);
+
+        if (nextPoll < 0) {
+            alarms.cancel(poll);
+        } else {
+            // Not an exact alarm so the system can fold it into other wake ups.
+            alarms.set(AlarmManager.RTC, Math.max(nextPoll, System.currentTimeMillis()), poll);
+        }
+    }
+}
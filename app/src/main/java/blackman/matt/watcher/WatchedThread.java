@@ -0,0 +1,48 @@
+/*
+ * Infinity Browser 2014  Matt Blackman
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package blackman.matt.watcher;
+
+/**
+ * Holds what is known about a thread the user is watching and when it should be checked next.
+ */
+public class WatchedThread {
+    // Last post number of a thread that has not been read yet, post numbers start at 1
+    public static final long NO_POST = 0;
+
+    public String boardRoot;
+    public String threadNo;
+    public int postCount;
+    public long lastPostNo = NO_POST;
+    public int newReplies;
+    public long pollInterval;
+    public long nextPoll;
+    public String eTag;
+    public String lastModified;
+
+    /**
+     * Basic constructor.
+     *
+     * @param boardRoot Root of board EG /v/, /tech/, etc..
+     * @param threadNo The thread being watched.
+     */
+    public WatchedThread(String boardRoot, String threadNo) {
+        this.boardRoot = boardRoot;
+        this.threadNo = threadNo;
+    }
+}